@@ -26,6 +26,10 @@ public abstract class Action {
      * The name of the action, used for logging purposes
      */
     public String name;
+    /**
+     * Whether the last redo or undo of this action failed, because a mod script exceeded it's time limit
+     */
+    private volatile boolean failed = false;
 
     /**
      * Constructs a new action with the specified name, requires all abstract functions to be defined
@@ -88,10 +92,17 @@ public abstract class Action {
 
     /**
      * Does (or redoes) the action.
+     * If a mod script exceeds it's time limit, the action is marked as failed instead of the exception being thrown.
+     * @see Action#hasFailed()
      */
     public final void redo() {
         LOGGER.trace("Redoing {}", name);
-        redoInternal();
+        failed = false;
+        try {
+            redoInternal();
+        } catch (ScriptWatchdog.ScriptTimeoutException e) {
+            fail(e);
+        }
     }
 
     /**
@@ -105,7 +116,31 @@ public abstract class Action {
      */
     public final void undo() {
         LOGGER.trace("Undoing {}", name);
-        undoInternal();
+        failed = false;
+        try {
+            undoInternal();
+        } catch (ScriptWatchdog.ScriptTimeoutException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Marks this action as failed
+     * @param e the exception the action failed with
+     */
+    private void fail(ScriptWatchdog.ScriptTimeoutException e) {
+        failed = true;
+        LOGGER.error("Action {} failed: {}", name, e.getMessage());
+    }
+
+    /**
+     * Returns whether the last {@link Action#redo()} or {@link Action#undo()} of this action failed,
+     * because a mod script exceeded it's time limit (see {@link ScriptWatchdog}).
+     * The part of the action before the script was still done
+     * @return whether this action failed
+     */
+    public boolean hasFailed() {
+        return failed;
     }
 
     /**
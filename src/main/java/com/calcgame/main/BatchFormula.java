@@ -0,0 +1,281 @@
+package com.calcgame.main;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * A {@link Formula} prepared for being evaluated over many variable bindings at once.<br>
+ * The bindings are passed as columns: one array of real parts and one array of imaginary parts per variable.
+ * The formula is {@link OptimizedFormula optimized} first, every variable is resolved to the index of its column once,
+ * and then the nodes are evaluated one after another for a whole chunk of bindings, so there are no map lookups
+ * and no {@link Complex} objects for the stock {@code + - * /} operations and {@code x^2}.
+ * Those are computed by {@link BatchKernels}, which use SIMD instructions if the {@code jdk.incubator.vector} module is present.
+ * Other operations and functions are applied to one binding at a time.<br>
+ * If evaluating the formula fails for a binding (e.g. division by zero), the result for that binding is {@code NaN}.
+ * @see BatchFormula#compile(Formula, List)
+ */
+public class BatchFormula {
+    /**
+     * The amount of bindings evaluated at once, small enough for the columns of all live nodes to stay in the CPU cache
+     */
+    public static final int CHUNK_SIZE = 1024;
+
+    /**
+     * The kernels used to evaluate the stock operations
+     */
+    private static final BatchKernels KERNELS = BatchKernels.load();
+
+    /**
+     * A node that is a constant
+     */
+    private static final byte CONSTANT = 0;
+
+    /**
+     * A node that is a variable
+     */
+    private static final byte VARIABLE = 1;
+
+    /**
+     * A node that applies an operation that has no kernel
+     */
+    private static final byte OPERATION = 2;
+
+    /**
+     * A node that applies a function
+     */
+    private static final byte FUNCTION = 3;
+
+    /**
+     * A node that multiplies a node by itself
+     */
+    private static final byte SQUARE = 4;
+
+    /**
+     * A node that applies the stock {@code a + b} operation
+     */
+    private static final byte ADD = 5;
+
+    /**
+     * A node that applies the stock {@code a - b} operation
+     */
+    private static final byte SUB = 6;
+
+    /**
+     * A node that applies the stock {@code a * b} operation
+     */
+    private static final byte MUL = 7;
+
+    /**
+     * A node that applies the stock {@code a / b} operation
+     */
+    private static final byte DIV = 8;
+
+    /**
+     * The formula this object was compiled from
+     */
+    protected final OptimizedFormula source;
+
+    /**
+     * The names of the variables, in the order of the columns
+     */
+    protected final List<String> variables;
+
+    /**
+     * The nodes to evaluate, in order, as indices into the nodes of {@link BatchFormula#source}
+     */
+    protected final int[] order;
+
+    /**
+     * The kind of every node of {@link BatchFormula#source}
+     */
+    protected final byte[] kinds;
+
+    /**
+     * The index of the column of every variable node
+     */
+    protected final int[] slots;
+
+    /**
+     * The index of the scratch column the value of every node is stored in
+     */
+    protected final int[] columns;
+
+    /**
+     * The amount of scratch columns needed to evaluate the formula
+     */
+    protected final int column_count;
+
+    /**
+     * Constructs a batch formula, use {@link BatchFormula#compile(Formula, List)} instead
+     * @param source the optimized formula
+     * @param variables the names of the variables, in the order of the columns
+     * @throws Formula.InvalidFormulaException if the formula contains a variable that is not in the list
+     */
+    private BatchFormula(OptimizedFormula source, List<String> variables) throws Formula.InvalidFormulaException {
+        this.source = source;
+        this.variables = List.copyOf(variables);
+        int n = source.result + 1;
+        kinds = new byte[n];
+        slots = new int[n];
+        int[] last_use = new int[n];
+        boolean[] needed = new boolean[n];
+        needed[source.result] = true;
+        for (int i = source.result; i >= 0; i--) {
+            if (!needed[i]) continue;
+            if (source.first[i] != -1 && !needed[source.first[i]]) {
+                needed[source.first[i]] = true;
+                last_use[source.first[i]] = i;
+            }
+            if (source.second[i] != -1 && !needed[source.second[i]]) {
+                needed[source.second[i]] = true;
+                last_use[source.second[i]] = i;
+            }
+        }
+        int[] tmp_order = new int[n];
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            if (!needed[i]) continue;
+            tmp_order[count++] = i;
+            kinds[i] = kindOf(source, i);
+            if (kinds[i] == VARIABLE) {
+                slots[i] = variables.indexOf((String) source.data[i]);
+                if (slots[i] == -1)
+                    throw new Formula.InvalidFormulaException("Formula contains a reference to variable '%s', which is not defined".formatted(source.data[i]));
+            }
+        }
+        order = Arrays.copyOf(tmp_order, count);
+        // assign scratch columns, reusing the column of a node after its last use
+        columns = new int[n];
+        int[] free = new int[n];
+        int free_count = 0, used = 0;
+        for (int i : order) {
+            columns[i] = free_count > 0 ? free[--free_count] : used++;
+            if (source.first[i] != -1 && last_use[source.first[i]] == i) free[free_count++] = columns[source.first[i]];
+            if (source.second[i] != -1 && source.second[i] != source.first[i] && last_use[source.second[i]] == i)
+                free[free_count++] = columns[source.second[i]];
+        }
+        column_count = used;
+    }
+
+    /**
+     * Prepares the specified formula for being evaluated over many bindings
+     * @param formula the formula
+     * @param variables the names of the variables, in the order their columns will be passed to {@link BatchFormula#calc(double[][], double[][], double[], double[])}
+     * @return the prepared formula
+     * @throws Formula.InvalidFormulaException if the formula is invalid, or contains a variable that is not in the list
+     */
+    public static BatchFormula compile(Formula formula, List<String> variables) throws Formula.InvalidFormulaException {
+        return new BatchFormula(formula.optimize(), variables);
+    }
+
+    /**
+     * Returns how a node of an optimized formula is evaluated
+     * @param source the optimized formula
+     * @param i the index of the node
+     * @return the kind of the node
+     */
+    private static byte kindOf(OptimizedFormula source, int i) {
+        return switch (source.kinds[i]) {
+            case OptimizedFormula.CONSTANT -> CONSTANT;
+            case OptimizedFormula.VARIABLE -> VARIABLE;
+            case OptimizedFormula.FUNCTION -> FUNCTION;
+            case OptimizedFormula.SQUARE -> SQUARE;
+            default -> {
+                Operation op = (Operation) source.data[i];
+                if (op.isCode("a + b")) yield ADD;
+                if (op.isCode("a - b")) yield SUB;
+                if (op.isCode("a * b")) yield MUL;
+                if (op.isCode("a / b")) yield DIV;
+                yield OPERATION;
+            }
+        };
+    }
+
+    /**
+     * Evaluates this formula for every binding
+     * @param real the real parts of the variables, {@code real[i][j]} is the value of the {@code i}th variable in the {@code j}th binding
+     * @param imag the imaginary parts of the variables, in the same layout
+     * @param out_real the array to store the real parts of the results in, it's length is the amount of bindings
+     * @param out_imag the array to store the imaginary parts of the results in
+     * @throws IllegalArgumentException if the amount of columns or the length of a column is wrong
+     */
+    public void calc(double[][] real, double[][] imag, double[] out_real, double[] out_imag) {
+        int n = out_real.length;
+        if (real.length != variables.size() || imag.length != variables.size() || out_imag.length != n)
+            throw new IllegalArgumentException("Expected %d columns of %d values".formatted(variables.size(), n));
+        for (int i = 0; i < real.length; i++)
+            if (real[i].length < n || imag[i].length < n)
+                throw new IllegalArgumentException("Column of variable '%s' is shorter than %d".formatted(variables.get(i), n));
+        double[][] re = new double[column_count][CHUNK_SIZE];
+        double[][] im = new double[column_count][CHUNK_SIZE];
+        for (int start = 0; start < n; start += CHUNK_SIZE) {
+            int len = Math.min(CHUNK_SIZE, n - start);
+            for (int i : order) {
+                int a = source.first[i], b = source.second[i];
+                double[] or = re[columns[i]], oi = im[columns[i]];
+                switch (kinds[i]) {
+                    case CONSTANT -> {
+                        Complex c = (Complex) source.data[i];
+                        Arrays.fill(or, 0, len, c.real());
+                        Arrays.fill(oi, 0, len, c.imag());
+                    }
+                    case VARIABLE -> {
+                        System.arraycopy(real[slots[i]], start, or, 0, len);
+                        System.arraycopy(imag[slots[i]], start, oi, 0, len);
+                    }
+                    case ADD -> KERNELS.add(re[columns[a]], im[columns[a]], re[columns[b]], im[columns[b]], or, oi, 0, len);
+                    case SUB -> KERNELS.sub(re[columns[a]], im[columns[a]], re[columns[b]], im[columns[b]], or, oi, 0, len);
+                    case MUL -> KERNELS.mul(re[columns[a]], im[columns[a]], re[columns[b]], im[columns[b]], or, oi, 0, len);
+                    case DIV -> KERNELS.div(re[columns[a]], im[columns[a]], re[columns[b]], im[columns[b]], or, oi, 0, len);
+                    case SQUARE -> KERNELS.square(re[columns[a]], im[columns[a]], or, oi, 0, len);
+                    default -> applyScalar(i, re, im, len);
+                }
+            }
+            System.arraycopy(re[columns[source.result]], 0, out_real, start, len);
+            System.arraycopy(im[columns[source.result]], 0, out_imag, start, len);
+        }
+    }
+
+    /**
+     * Evaluates a node that has no kernel one binding at a time
+     * @param i the index of the node
+     * @param re the real parts of the scratch columns
+     * @param im the imaginary parts of the scratch columns
+     * @param len the amount of bindings in the current chunk
+     */
+    @SuppressWarnings("unchecked")
+    private void applyScalar(int i, double[][] re, double[][] im, int len) {
+        double[] ar = re[columns[source.first[i]]], ai = im[columns[source.first[i]]];
+        double[] or = re[columns[i]], oi = im[columns[i]];
+        for (int j = 0; j < len; j++) {
+            Complex a = new Complex(ar[j], ai[j]), res;
+            try {
+                if (kinds[i] == OPERATION) {
+                    int b = columns[source.second[i]];
+                    res = ((Operation) source.data[i]).f().apply(a, new Complex(re[b][j], im[b][j]));
+                } else res = ((UnaryOperator<Complex>) source.data[i]).apply(a);
+            } catch (RuntimeException e) {
+                res = new Complex(Double.NaN, Double.NaN);
+            }
+            or[j] = res.real();
+            oi[j] = res.imag();
+        }
+    }
+
+    /**
+     * Returns the names of the variables, in the order of the columns
+     * @return the names of the variables
+     */
+    public List<String> getVariables() {
+        return variables;
+    }
+
+    /**
+     * Returns the formula this object was compiled from
+     * @return the optimized source formula
+     */
+    public OptimizedFormula getSource() {
+        return source;
+    }
+}
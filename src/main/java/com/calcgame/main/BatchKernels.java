@@ -0,0 +1,142 @@
+package com.calcgame.main;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Element-wise complex arithmetic over columns of real and imaginary parts, used by {@link BatchFormula}.<br>
+ * Every method computes the elements in {@code [from, to)}, with the same results as the matching method of {@link Complex},
+ * except that division by zero results in {@code NaN} instead of throwing.
+ * The output arrays must not be the same as the input arrays.
+ * This class computes one element at a time, {@code VectorBatchKernels} uses the {@code jdk.incubator.vector} API.
+ * It is in the separate {@code vector} source set, as compiling it requires the incubating module.
+ */
+public class BatchKernels {
+    /**
+     * The logger used in this class
+     */
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    /**
+     * Constructs the scalar kernels, use {@link BatchKernels#load()} instead
+     */
+    protected BatchKernels() {
+    }
+
+    /**
+     * Returns the fastest available kernels: {@code VectorBatchKernels} if the {@code jdk.incubator.vector} module
+     * is present (the game was started with {@code --add-modules jdk.incubator.vector}, e.g. using {@code gradle run -Pvector}),
+     * scalar kernels otherwise
+     * @return the kernels
+     */
+    public static BatchKernels load() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                return (BatchKernels) Class.forName("com.calcgame.main.VectorBatchKernels").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                LOGGER.warn("Unable to load vectorized kernels, using scalar ones", e);
+            }
+        } else LOGGER.debug("Module jdk.incubator.vector is not present, using scalar kernels");
+        return new BatchKernels();
+    }
+
+    /**
+     * Computes {@code a + b}
+     * @param ar the real parts of {@code a}
+     * @param ai the imaginary parts of {@code a}
+     * @param br the real parts of {@code b}
+     * @param bi the imaginary parts of {@code b}
+     * @param or the array to store the real parts of the result in
+     * @param oi the array to store the imaginary parts of the result in
+     * @param from the first index to compute
+     * @param to the index after the last one to compute
+     */
+    public void add(double[] ar, double[] ai, double[] br, double[] bi, double[] or, double[] oi, int from, int to) {
+        for (int i = from; i < to; i++) {
+            or[i] = ar[i] + br[i];
+            oi[i] = ai[i] + bi[i];
+        }
+    }
+
+    /**
+     * Computes {@code a - b}
+     * @param ar the real parts of {@code a}
+     * @param ai the imaginary parts of {@code a}
+     * @param br the real parts of {@code b}
+     * @param bi the imaginary parts of {@code b}
+     * @param or the array to store the real parts of the result in
+     * @param oi the array to store the imaginary parts of the result in
+     * @param from the first index to compute
+     * @param to the index after the last one to compute
+     */
+    public void sub(double[] ar, double[] ai, double[] br, double[] bi, double[] or, double[] oi, int from, int to) {
+        for (int i = from; i < to; i++) {
+            or[i] = ar[i] - br[i];
+            oi[i] = ai[i] - bi[i];
+        }
+    }
+
+    /**
+     * Computes {@code a * b}
+     * @param ar the real parts of {@code a}
+     * @param ai the imaginary parts of {@code a}
+     * @param br the real parts of {@code b}
+     * @param bi the imaginary parts of {@code b}
+     * @param or the array to store the real parts of the result in
+     * @param oi the array to store the imaginary parts of the result in
+     * @param from the first index to compute
+     * @param to the index after the last one to compute
+     */
+    public void mul(double[] ar, double[] ai, double[] br, double[] bi, double[] or, double[] oi, int from, int to) {
+        for (int i = from; i < to; i++) {
+            or[i] = ar[i] * br[i] - ai[i] * bi[i];
+            oi[i] = ar[i] * bi[i] + ai[i] * br[i];
+        }
+    }
+
+    /**
+     * Computes {@code a / b}, or {@code NaN} if {@code b} is zero
+     * @param ar the real parts of {@code a}
+     * @param ai the imaginary parts of {@code a}
+     * @param br the real parts of {@code b}
+     * @param bi the imaginary parts of {@code b}
+     * @param or the array to store the real parts of the result in
+     * @param oi the array to store the imaginary parts of the result in
+     * @param from the first index to compute
+     * @param to the index after the last one to compute
+     */
+    public void div(double[] ar, double[] ai, double[] br, double[] bi, double[] or, double[] oi, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (br[i] == 0 && bi[i] == 0) {
+                or[i] = Double.NaN;
+                oi[i] = Double.NaN;
+            } else if (Math.abs(br[i]) >= Math.abs(bi[i])) {
+                double ratio = bi[i] / br[i];
+                double denom = br[i] + bi[i] * ratio;
+                or[i] = (ar[i] + ai[i] * ratio) / denom;
+                oi[i] = (ai[i] - ar[i] * ratio) / denom;
+            } else {
+                double ratio = br[i] / bi[i];
+                double denom = br[i] * ratio + bi[i];
+                or[i] = (ar[i] * ratio + ai[i]) / denom;
+                oi[i] = (ai[i] * ratio - ar[i]) / denom;
+            }
+        }
+    }
+
+    /**
+     * Computes {@code a * a}
+     * @param ar the real parts of {@code a}
+     * @param ai the imaginary parts of {@code a}
+     * @param or the array to store the real parts of the result in
+     * @param oi the array to store the imaginary parts of the result in
+     * @param from the first index to compute
+     * @param to the index after the last one to compute
+     */
+    public void square(double[] ar, double[] ai, double[] or, double[] oi, int from, int to) {
+        for (int i = from; i < to; i++) {
+            or[i] = ar[i] * ar[i] - ai[i] * ai[i];
+            oi[i] = ar[i] * ai[i] + ai[i] * ar[i];
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.calcgame.main;
+
+import com.calcgame.main.buttons.CalculateButton;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Map;
+import java.util.function.BinaryOperator;
+import java.util.function.UnaryOperator;
+
+/**
+ * A {@link Formula} that was compiled into a tree of {@link MethodHandle}s.<br>
+ * Every node of the formula becomes a handle of type {@code (Map, EvaluationBudget)Complex}, with operation and function lambdas
+ * bound as constants, so no field of the formula is checked while evaluating.
+ * Every operation and function node charges it's cost (see {@link CalculateButton#getCost(Operation)}) to the budget
+ * before it is evaluated, so a compiled formula of slow scripts is still aborted once the budget or it's time limit is exceeded.
+ * After a few hundred invocations the JVM customizes the handle tree for this instance, which lets the JIT
+ * inline the bound lambdas into straight-line code instead of going through a megamorphic {@code apply} call per node.
+ * Compiling costs more than evaluating once, so this is only worth it for formulas that are evaluated many times,
+ * which is why {@link com.calcgame.main.buttons.CalculateButton} only compiles cached formulas that have to be evaluated again.
+ * @see Formula#compile()
+ */
+public class CompiledFormula {
+    /**
+     * The type of the handle of every compiled node
+     */
+    private static final MethodType NODE_TYPE = MethodType.methodType(Complex.class, Map.class, EvaluationBudget.class);
+
+    /**
+     * The deepest formula that can be compiled, since both compiling and invoking the handle tree are recursive
+     */
+    public static final int MAX_DEPTH = 1000;
+
+    /**
+     * {@link BinaryOperator#apply(Object, Object)}, used to evaluate operations
+     */
+    private static final MethodHandle APPLY_OPERATION;
+
+    /**
+     * {@link UnaryOperator#apply(Object)}, used to evaluate functions
+     */
+    private static final MethodHandle APPLY_FUNCTION;
+
+    /**
+     * {@link CompiledFormula#getVariable(Map, String)}, used to look up variables
+     */
+    private static final MethodHandle GET_VARIABLE;
+
+    /**
+     * {@link CompiledFormula#charge(EvaluationBudget, long)}, used to charge the cost of operations and functions
+     */
+    private static final MethodHandle CHARGE;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            APPLY_OPERATION = lookup.findVirtual(BinaryOperator.class, "apply", MethodType.methodType(Object.class, Object.class, Object.class));
+            APPLY_FUNCTION = lookup.findVirtual(UnaryOperator.class, "apply", MethodType.methodType(Object.class, Object.class));
+            GET_VARIABLE = lookup.findStatic(CompiledFormula.class, "getVariable", MethodType.methodType(Complex.class, Map.class, String.class));
+            CHARGE = lookup.findStatic(CompiledFormula.class, "charge", MethodType.methodType(void.class, EvaluationBudget.class, long.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * The formula this object was compiled from
+     */
+    protected final Formula source;
+
+    /**
+     * The handle that evaluates the whole formula, of type {@code (Map, EvaluationBudget)Complex}
+     */
+    protected final MethodHandle handle;
+
+    /**
+     * The amount of operations in the formula, computed once when compiling
+     */
+    protected final int operations;
+
+    /**
+     * Constructs a compiled formula, use {@link CompiledFormula#compile(Formula)} instead
+     * @param source the formula that was compiled
+     * @param handle the handle that evaluates the formula
+     * @param operations the amount of operations in the formula
+     */
+    private CompiledFormula(Formula source, MethodHandle handle, int operations) {
+        this.source = source;
+        this.handle = handle;
+        this.operations = operations;
+    }
+
+    /**
+     * Compiles the specified formula
+     * @param formula the formula to compile
+     * @return the compiled formula
+     * @throws Formula.InvalidFormulaException if the formula is invalid, or deeper than {@link CompiledFormula#MAX_DEPTH}
+     */
+    public static CompiledFormula compile(Formula formula) throws Formula.InvalidFormulaException {
+        return new CompiledFormula(formula, compileNode(formula, 0), formula.countOperations());
+    }
+
+    /**
+     * Compiles a single node of a formula, together with all of its children
+     * @param node the node to compile
+     * @param depth the depth of the node in the formula
+     * @return a handle of type {@code (Map, EvaluationBudget)Complex} that evaluates the node
+     * @throws Formula.InvalidFormulaException if the node is invalid, or the formula is deeper than {@link CompiledFormula#MAX_DEPTH}
+     */
+    private static MethodHandle compileNode(Formula node, int depth) throws Formula.InvalidFormulaException {
+        if (depth > MAX_DEPTH) throw new Formula.InvalidFormulaException("Formula is too deep to compile, use Formula.calc instead");
+        if (node.variable != null)
+            return MethodHandles.dropArguments(MethodHandles.insertArguments(GET_VARIABLE, 1, node.variable), 1, EvaluationBudget.class);
+        if (node.constant != null)
+            return MethodHandles.dropArguments(MethodHandles.constant(Complex.class, node.constant), 0, Map.class, EvaluationBudget.class);
+        if (node.op != null && node.b != null) {
+            MethodHandle op = APPLY_OPERATION.bindTo(node.op.f())
+                    .asType(MethodType.methodType(Complex.class, Complex.class, Complex.class));
+            MethodHandle second = MethodHandles.collectArguments(op, 1, compileNode(node.b, depth + 1));
+            MethodHandle both = MethodHandles.collectArguments(second, 0, compileNode(node.a, depth + 1));
+            return charging(MethodHandles.permuteArguments(both, NODE_TYPE, 0, 1, 0, 1), CalculateButton.getCost(node.op));
+        }
+        if (node.f != null) {
+            MethodHandle f = APPLY_FUNCTION.bindTo(node.f)
+                    .asType(MethodType.methodType(Complex.class, Complex.class));
+            return charging(MethodHandles.collectArguments(f, 0, compileNode(node.a, depth + 1)), CalculateButton.getCost(node.f));
+        }
+        throw new Formula.InvalidFormulaException("Formula does not contain an operation and second operand or unary function");
+    }
+
+    /**
+     * Makes a compiled node charge it's cost to the budget before it is evaluated
+     * @param node the handle that evaluates the node
+     * @param cost the cost of the node's operation or function when it was compiled
+     * @return a handle of type {@code (Map, EvaluationBudget)Complex} that charges the cost and evaluates the node
+     */
+    private static MethodHandle charging(MethodHandle node, long cost) {
+        MethodHandle charge = MethodHandles.dropArguments(MethodHandles.insertArguments(CHARGE, 1, cost), 0, Map.class);
+        return MethodHandles.foldArguments(node, charge);
+    }
+
+    /**
+     * Charges the cost of an operation or function when evaluating a compiled formula
+     * @param budget the budget passed to {@link CompiledFormula#calc(Map, EvaluationBudget)}, or {@code null}
+     * @param cost the cost
+     * @throws Formula.InvalidFormulaException if the budget was exceeded
+     */
+    private static void charge(@Nullable EvaluationBudget budget, long cost) throws Formula.InvalidFormulaException {
+        if (budget != null) budget.charge(cost);
+    }
+
+    /**
+     * Looks up a variable when evaluating a compiled formula
+     * @param vars the variables passed to {@link CompiledFormula#calc(Map)}
+     * @param name the name of the variable
+     * @return the value of the variable
+     * @throws Formula.InvalidFormulaException if the variable is undefined
+     */
+    private static Complex getVariable(Map<String, Complex> vars, String name) throws Formula.InvalidFormulaException {
+        Complex value = vars.get(name);
+        if (value == null)
+            throw new Formula.InvalidFormulaException("Formula contains a reference to variable '%s', which is not defined".formatted(name));
+        return value;
+    }
+
+    /**
+     * Evaluates this formula
+     * @return the result of evaluating this formula
+     * @throws Formula.InvalidFormulaException if this formula contains a variable
+     */
+    public Complex calc() throws Formula.InvalidFormulaException {
+        return calc(Map.of());
+    }
+
+    /**
+     * Evaluates this formula, equivalent to {@link Formula#calc(Map)} on the source formula
+     * @param vars the variables to use
+     * @return the result of evaluating this formula
+     * @throws Formula.InvalidFormulaException if a variable is undefined or an operation is undefined for its operands
+     */
+    public Complex calc(Map<String, Complex> vars) throws Formula.InvalidFormulaException {
+        return calc(vars, null);
+    }
+
+    /**
+     * Evaluates this formula, aborting if evaluating it takes more than the specified budget,
+     * equivalent to {@link Formula#calc(Map, EvaluationBudget)} on the source formula
+     * @param vars the variables to use
+     * @param budget the budget to charge every operation and function to, or {@code null} to not limit evaluation
+     * @return the result of evaluating this formula
+     * @throws Formula.InvalidFormulaException if a variable is undefined, an operation is undefined for its operands
+     * or the budget was exceeded
+     */
+    public Complex calc(Map<String, Complex> vars, @Nullable EvaluationBudget budget) throws Formula.InvalidFormulaException {
+        try {
+            return (Complex) handle.invokeExact(vars, budget);
+        } catch (ArithmeticException e) {
+            throw new Formula.InvalidFormulaException(e.getMessage());
+        } catch (Formula.InvalidFormulaException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("Unexpected exception when evaluating a compiled formula", e);
+        }
+    }
+
+    /**
+     * Returns the amount of operations in this formula
+     * @return the amount of operations
+     */
+    public int countOperations() {
+        return operations;
+    }
+
+    /**
+     * Returns the formula this object was compiled from
+     * @return the source formula
+     */
+    public Formula getSource() {
+        return source;
+    }
+
+    /**
+     * Returns a human-readable string representation of the source formula
+     * @return a human-readable string representation of the source formula
+     */
+    @Override
+    public String toString() {
+        return source.toString();
+    }
+}
@@ -0,0 +1,207 @@
+package com.calcgame.main;
+
+import org.python.core.PyComplex;
+
+/**
+ * An immutable complex number, used when parsing and evaluating formulas instead of {@link PyComplex}.<br>
+ * The arithmetic follows Jython's {@code complex} type, so results are the same as if they were computed in a mod script,
+ * but no Python objects are created. {@link PyComplex} objects should only be created
+ * (using {@link Complex#toPy()}) when a number is passed to a mod script.<br>
+ * Arithmetic is not allocation-free: every operation returns a new instance, so numbers can be shared and cached safely.
+ * Short-lived intermediate results may be scalar-replaced by the JIT when the operations are inlined, but that is not guaranteed.
+ * Loops over many numbers should use the primitive kernels of {@link BatchKernels} instead, which work on columns of
+ * {@code double}s and do not allocate per element.
+ * @param real the real part
+ * @param imag the imaginary part
+ */
+public record Complex(double real, double imag) {
+    /**
+     * The number {@code 0}
+     */
+    public static final Complex ZERO = new Complex(0, 0);
+
+    /**
+     * The number {@code 1}
+     */
+    public static final Complex ONE = new Complex(1, 0);
+
+    /**
+     * The imaginary unit
+     */
+    public static final Complex I = new Complex(0, 1);
+
+    /**
+     * Infinity, equal to {@link PyComplex#Inf}
+     */
+    public static final Complex INF = new Complex(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY);
+
+    /**
+     * The largest integral exponent for which {@link Complex#pow(Complex)} uses repeated multiplication
+     */
+    private static final int MAX_INTEGRAL_EXPONENT = 100;
+
+    /**
+     * Returns the specified real number as a complex number
+     * @param real the real number
+     * @return a complex number with the specified real part
+     */
+    public static Complex of(double real) {
+        return new Complex(real, 0);
+    }
+
+    /**
+     * Converts a Python complex number
+     * @param x the number to convert
+     * @return a complex number equal to {@code x}
+     */
+    public static Complex of(PyComplex x) {
+        return new Complex(x.real, x.imag);
+    }
+
+    /**
+     * Converts this number into a Python object, to pass it to a mod script
+     * @return a new {@link PyComplex} equal to this number
+     */
+    public PyComplex toPy() {
+        return new PyComplex(real, imag);
+    }
+
+    /**
+     * Returns whether this number is zero
+     * @return {@code true} if both the real and imaginary parts are {@code 0}
+     */
+    public boolean isZero() {
+        return real == 0 && imag == 0;
+    }
+
+    /**
+     * Returns {@code this + other}
+     * @param other the number to add
+     * @return the sum
+     */
+    public Complex add(Complex other) {
+        return new Complex(real + other.real, imag + other.imag);
+    }
+
+    /**
+     * Returns {@code this - other}
+     * @param other the number to subtract
+     * @return the difference
+     */
+    public Complex sub(Complex other) {
+        return new Complex(real - other.real, imag - other.imag);
+    }
+
+    /**
+     * Returns {@code this * other}
+     * @param other the number to multiply by
+     * @return the product
+     */
+    public Complex mul(Complex other) {
+        return new Complex(real * other.real - imag * other.imag, real * other.imag + imag * other.real);
+    }
+
+    /**
+     * Returns {@code this / other}
+     * @param other the divisor
+     * @return the quotient
+     * @throws ArithmeticException if {@code other} is zero
+     */
+    public Complex div(Complex other) {
+        double abs_real = Math.abs(other.real), abs_imag = Math.abs(other.imag);
+        if (abs_real >= abs_imag) {
+            if (abs_real == 0) throw new ArithmeticException("complex division by zero");
+            double ratio = other.imag / other.real;
+            double denom = other.real + other.imag * ratio;
+            return new Complex((real + imag * ratio) / denom, (imag - real * ratio) / denom);
+        } else {
+            double ratio = other.real / other.imag;
+            double denom = other.real * ratio + other.imag;
+            return new Complex((real * ratio + imag) / denom, (imag * ratio - real) / denom);
+        }
+    }
+
+    /**
+     * Returns {@code this ** other}.
+     * Small integral exponents are computed using repeated multiplication, so they are exact for integers.
+     * @param other the exponent
+     * @return the power
+     * @throws ArithmeticException if this number is zero and the exponent is negative or complex
+     */
+    public Complex pow(Complex other) {
+        if (other.isZero()) return ONE;
+        if (isZero() && (other.imag != 0 || other.real < 0))
+            throw new ArithmeticException("0.0 to a negative or complex power");
+        if (other.imag == 0 && other.real == Math.rint(other.real) && Math.abs(other.real) <= MAX_INTEGRAL_EXPONENT)
+            return powi((int) other.real);
+        double abs = Math.hypot(real, imag);
+        double len = Math.pow(abs, other.real);
+        double at = Math.atan2(imag, real);
+        double phase = at * other.real;
+        if (other.imag != 0) {
+            len /= Math.exp(at * other.imag);
+            phase += other.imag * Math.log(abs);
+        }
+        return new Complex(len * Math.cos(phase), len * Math.sin(phase));
+    }
+
+    /**
+     * Returns this number raised to an integral power, using exponentiation by squaring
+     * @param exponent the exponent
+     * @return the power
+     */
+    private Complex powi(int exponent) {
+        int n = Math.abs(exponent);
+        double xr = real, xi = imag, zr = 1, zi = 0, tmp;
+        while (n > 0) {
+            if ((n & 1) != 0) {
+                tmp = zr * xr - zi * xi;
+                zi = zi * xr + zr * xi;
+                zr = tmp;
+            }
+            n >>= 1;
+            if (n == 0) break;
+            tmp = xr * xr - xi * xi;
+            xi = 2 * xr * xi;
+            xr = tmp;
+        }
+        Complex out = new Complex(zr, zi);
+        return exponent < 0 ? ONE.div(out) : out;
+    }
+
+    /**
+     * Returns {@code this % other}, defined as {@code this - floor((this/other).real) * other}
+     * @param other the divisor
+     * @return the remainder
+     * @throws ArithmeticException if {@code other} is zero
+     */
+    public Complex mod(Complex other) {
+        Complex quotient = new Complex(Math.floor(div(other).real), 0);
+        return sub(quotient.mul(other));
+    }
+
+    /**
+     * Returns {@code -this}
+     * @return the negated number
+     */
+    public Complex neg() {
+        return new Complex(-real, -imag);
+    }
+
+    /**
+     * Returns the absolute value of this number
+     * @return a real number equal to the distance from {@code 0} to this number
+     */
+    public Complex abs() {
+        return new Complex(Math.hypot(real, imag), 0);
+    }
+
+    /**
+     * Returns a string in the same format as {@link PyComplex#toString()}
+     * @return a string representation of this number
+     */
+    @Override
+    public String toString() {
+        return toPy().toString();
+    }
+}
@@ -0,0 +1,85 @@
+package com.calcgame.main;
+
+import com.calcgame.main.buttons.CalculateButton;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A limit on how much work evaluating a formula may take, to stop runaway expressions from freezing the game.<br>
+ * The work is measured in cost units: every operation and function has a cost (see {@link CalculateButton#getCost(Operation)}),
+ * which is charged when it is evaluated. Evaluation is aborted when the total cost or the time spent exceeds the limit.
+ * A budget is used for a single evaluation, as it remembers how much was already spent.
+ * It may be charged by several threads at once, e.g. by {@link ParallelFormula}.
+ * @see Formula#calc(java.util.Map, EvaluationBudget)
+ */
+public class EvaluationBudget {
+    /**
+     * The maximum total cost
+     */
+    protected final long max_cost;
+
+    /**
+     * The value of {@link System#nanoTime()} after which evaluation is aborted
+     */
+    protected final long deadline;
+
+    /**
+     * The maximum time in nanoseconds, used for error messages
+     */
+    protected final long max_nanos;
+
+    /**
+     * The total cost charged so far, by any thread
+     */
+    protected final AtomicLong spent = new AtomicLong();
+
+    /**
+     * Constructs a budget, the time limit starts when it is constructed
+     * @param max_cost the maximum total cost
+     * @param max_millis the maximum time in milliseconds
+     */
+    public EvaluationBudget(long max_cost, long max_millis) {
+        this.max_cost = max_cost;
+        this.max_nanos = max_millis * 1_000_000;
+        this.deadline = System.nanoTime() + max_nanos;
+    }
+
+    /**
+     * Constructs a budget with the limits configured in {@link CalculateButton}
+     * @return a new budget
+     */
+    public static EvaluationBudget standard() {
+        return new EvaluationBudget(CalculateButton.evaluation_budget, CalculateButton.evaluation_time_limit);
+    }
+
+    /**
+     * Checks that the estimated cost of evaluating a formula fits into this budget, before it is evaluated
+     * @param estimate the estimated cost
+     * @throws Formula.InvalidFormulaException if the estimate exceeds the remaining budget
+     */
+    public void check(long estimate) throws Formula.InvalidFormulaException {
+        long remaining = max_cost - spent.get();
+        if (estimate > remaining)
+            throw new Formula.InvalidFormulaException("Formula is too expensive to evaluate: estimated cost %d exceeds the budget of %d".formatted(estimate, remaining));
+    }
+
+    /**
+     * Charges the cost of evaluating an operation or function
+     * @param cost the cost
+     * @throws Formula.InvalidFormulaException if the total cost or the time spent exceeds the limit
+     */
+    public void charge(long cost) throws Formula.InvalidFormulaException {
+        if (spent.addAndGet(cost) > max_cost)
+            throw new Formula.InvalidFormulaException("Evaluation aborted: cost exceeded the budget of %d".formatted(max_cost));
+        if (System.nanoTime() - deadline > 0)
+            throw new Formula.InvalidFormulaException("Evaluation aborted: took longer than %d ms".formatted(max_nanos / 1_000_000));
+    }
+
+    /**
+     * Returns the total cost charged so far
+     * @return the spent cost
+     */
+    public long getSpent() {
+        return spent.get();
+    }
+}
@@ -6,6 +6,7 @@ import org.jetbrains.annotations.Nullable;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Function;
 
 /**
  * An event that can be emitted and listened to.
@@ -29,6 +30,17 @@ public class Event {
      */
     protected Map<String, Action> private_listeners;
 
+    /**
+     * The key every listener is profiled under (see {@link ScriptProfiler}), keyed by the id of the listener.
+     * Computed once per id, so emitting the event does not format the keys again
+     */
+    private final Map<String, String> profile_keys = new HashMap<>();
+
+    /**
+     * Computes the key a listener is profiled under, {@code event/listener}
+     */
+    private final Function<String, String> profile_key;
+
     /**
      * If {@code true}, when undone skips over this event's action and undoes the action before that.
      */
@@ -43,6 +55,7 @@ public class Event {
         this.LOGGER = LogManager.getLogger("Event/%s".formatted(name));
         this.listeners = new HashMap<>();
         this.private_listeners = new HashMap<>();
+        this.profile_key = (id) -> "%s/%s".formatted(name, id);
         this.skipUndo = skipUndo;
     }
 
@@ -70,11 +83,15 @@ public class Event {
             protected void redoInternal() {
                 try {
                     assert getContext() != null;
-                    if (privateListenerId != null && private_listeners.containsKey(privateListenerId)) getContext().state().appendToLastAction(private_listeners.get(privateListenerId)).redo();
+                    if (privateListenerId != null && private_listeners.containsKey(privateListenerId)) {
+                        Action listener = getContext().state().appendToLastAction(private_listeners.get(privateListenerId));
+                        ScriptProfiler.profile(profile_keys.computeIfAbsent(privateListenerId, profile_key), listener::redo);
+                    }
                     tmp_listeners.forEach((id, action) -> {
                         LOGGER.trace("Calling listener with id {} (action name {})", id, action.name);
                         action.setContext(ctx);
-                        getContext().state().appendToLastAction(action).redo();
+                        Action listener = getContext().state().appendToLastAction(action);
+                        ScriptProfiler.profile(profile_keys.computeIfAbsent(id, profile_key), listener::redo);
                     });
                 } catch (EventInterrupt e) {
                     LOGGER.debug("Event interrupted: {}", e.getMessage());
@@ -111,6 +128,7 @@ public class Event {
         if (listener == null && !listeners.containsKey(id)) LOGGER.warn("Attempt to remove a listener that does not exist (id {})", id);
         if (listener != null && listeners.containsKey(id)) LOGGER.warn("Overwriting listener with id {}", id);
         listeners.put(id, listener);
+        if (listener != null) profile_keys.computeIfAbsent(id, profile_key);
     }
 
     /**
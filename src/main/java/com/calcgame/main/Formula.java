@@ -2,84 +2,222 @@ package com.calcgame.main;
 
 import com.calcgame.main.buttons.CalculateButton;
 import org.jetbrains.annotations.Nullable;
-import org.python.core.PyComplex;
 
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
 import java.util.Map;
-import java.util.function.Function;
+import java.util.Objects;
+import java.util.WeakHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BinaryOperator;
+import java.util.function.UnaryOperator;
 
 /**
- * An object that represents a mathematical expression
+ * An immutable object that represents a mathematical expression.<br>
+ * Formulas created using the {@code of} factories and {@link Formula#andThen(UnaryOperator)} are interned:
+ * structurally equal formulas are the same object, as long as the earlier one is still referenced
+ * and {@link Formula#MAX_INTERNED} was not exceeded in between. So repeated subexpressions share one instance,
+ * and the value of a subexpression without variables, that only uses {@link Intrinsics} operations and functions,
+ * is remembered after it is evaluated once.
  */
 public class Formula {
+    /**
+     * The maximum amount of formulas in the interning table, when it is exceeded the table is cleared
+     */
+    public static final int MAX_INTERNED = 1 << 16;
+
+    /**
+     * The interned formulas. The keys are weak, so formulas that are not referenced anymore are removed automatically
+     */
+    private static final Map<Formula, WeakReference<Formula>> interned = new WeakHashMap<>();
+
     /**
      * The first operand if this object represents an operation,
      * the argument if this object represents a function, {@code null} otherwise
      */
-    protected Formula a;
+    protected final Formula a;
 
     /**
      * The second operand if this object represents an operation, {@code null} otherwise
      */
-    protected @Nullable Formula b;
+    protected final @Nullable Formula b;
 
     /**
      * The operation this object represents, or {@code null} if it doesn't represent an operation
      */
-    protected @Nullable Operation op;
+    protected final @Nullable Operation op;
 
     /**
      * The function this object represents, or {@code null} if it doesn't represent a function
      */
-    protected @Nullable Function<PyComplex, PyComplex> f;
+    protected final @Nullable UnaryOperator<Complex> f;
 
     /**
      * The value this object represents, or {@code null} if it doesn't represent a value
      */
-    protected @Nullable PyComplex constant;
+    protected final @Nullable Complex constant;
 
     /**
      * The name of the variable this object represents, or {@code null} if it doesn't represent a variable
      */
-    protected @Nullable String variable;
+    protected final @Nullable String variable;
+
+    /**
+     * The amount of operations in this formula, or {@code -1} if this formula is invalid
+     */
+    protected final int operations;
+
+    /**
+     * Whether the value of this formula can be remembered after evaluating it,
+     * i.e. it has no variables and only uses pure operations and functions (see {@link CalculateButton#isPure(Operation)})
+     */
+    protected final boolean memoizable;
+
+    /**
+     * The hash code of this formula, computed once
+     */
+    private final int hash;
 
     /**
-     * Some weird thing that breaks everything if removed.
-     * Probably used when parsing a formula
+     * The remembered value of this formula, or {@code null} if it was not evaluated yet or is not {@link Formula#memoizable}.
+     * May be set by several threads (see {@link ParallelFormula}), which is safe as they all set an equal immutable value.
      */
-    private int tmp_return_info = -1;
+    @Nullable Complex value;
 
     /**
-     * Leaves all fields {@code null}
+     * Leaves all fields {@code null}, resulting in an invalid formula
      */
     protected Formula() {
+        this(null, null, null, null, null, null);
     }
 
     /**
-     * Constructs a formula with the specified operation
+     * Constructs a formula with the specified operation. Prefer {@link Formula#of(Formula, Operation, Formula)}, which interns the formula
      * @param a the first operand
      * @param op the operation
      * @param b the second operand
      */
     public Formula(Formula a, @Nullable Operation op, @Nullable Formula b) {
-        this.a = a;
-        this.op = op;
-        this.b = b;
+        this(a, b, op, null, null, null);
     }
 
     /**
-     * Constructs a formula with the specified constant
+     * Constructs a formula with the specified constant. Prefer {@link Formula#of(Complex)}, which interns the formula
      * @param constant the number this formula will represent
      */
-    public Formula(@Nullable PyComplex constant) {
-        this.constant = constant;
+    public Formula(@Nullable Complex constant) {
+        this(null, null, null, null, constant, null);
     }
 
     /**
-     * Constructs a formula with the specified string as it's variable name
+     * Constructs a formula with the specified string as it's variable name. Prefer {@link Formula#of(String)}, which interns the formula
      * @param variable the variable name
      */
     public Formula(@Nullable String variable) {
+        this(null, null, null, null, null, variable);
+    }
+
+    /**
+     * Constructs a formula with the specified fields, and computes the derived ones from the operands
+     * @param a the first operand or argument
+     * @param b the second operand
+     * @param op the operation
+     * @param f the function
+     * @param constant the constant
+     * @param variable the variable name
+     */
+    private Formula(Formula a, @Nullable Formula b, @Nullable Operation op, @Nullable UnaryOperator<Complex> f,
+                    @Nullable Complex constant, @Nullable String variable) {
+        this.a = a;
+        this.b = b;
+        this.op = op;
+        this.f = f;
+        this.constant = constant;
         this.variable = variable;
+        if (variable != null) {
+            operations = 0;
+            memoizable = false;
+        } else if (constant != null) {
+            operations = 0;
+            memoizable = true;
+        } else if (op != null && b != null) {
+            operations = a.operations < 0 || b.operations < 0 ? -1 : a.operations + 1 + b.operations;
+            memoizable = a.memoizable && b.memoizable && CalculateButton.isPure(op);
+        } else if (f != null) {
+            operations = a.operations < 0 ? -1 : a.operations + 1;
+            memoizable = a.memoizable && CalculateButton.isPure(f);
+        } else {
+            operations = -1;
+            memoizable = false;
+        }
+        hash = ((System.identityHashCode(a) * 31 + System.identityHashCode(b)) * 31
+                + System.identityHashCode(op) + System.identityHashCode(f)) * 31 + Objects.hashCode(constant) + Objects.hashCode(variable);
+    }
+
+    /**
+     * Returns the interned formula equal to the specified one, adding it to the interning table if there is none
+     * @param formula the formula to intern
+     * @return an equal formula from the interning table
+     */
+    private static Formula intern(Formula formula) {
+        synchronized (interned) {
+            WeakReference<Formula> ref = interned.get(formula);
+            Formula existing = ref == null ? null : ref.get();
+            if (existing != null) return existing;
+            if (interned.size() >= MAX_INTERNED) interned.clear();
+            interned.put(formula, new WeakReference<>(formula));
+            return formula;
+        }
+    }
+
+    /**
+     * Returns an interned formula that applies an operation
+     * @param a the first operand
+     * @param op the operation
+     * @param b the second operand
+     * @return the formula
+     */
+    public static Formula of(Formula a, Operation op, Formula b) {
+        return intern(new Formula(a, b, op, null, null, null));
+    }
+
+    /**
+     * Returns an interned formula that represents a constant
+     * @param constant the number the formula will represent
+     * @return the formula
+     */
+    public static Formula of(Complex constant) {
+        return intern(new Formula(null, null, null, null, constant, null));
+    }
+
+    /**
+     * Returns an interned formula that represents a variable
+     * @param variable the variable name
+     * @return the formula
+     */
+    public static Formula of(String variable) {
+        return intern(new Formula(null, null, null, null, null, variable));
+    }
+
+    /**
+     * Removes all formulas from the interning table, so formulas created afterwards are not shared with earlier ones.
+     * Called when an operation or function is declared pure or impure, as whether a formula is {@link Formula#memoizable}
+     * is decided when it is created
+     */
+    public static void clearInterned() {
+        synchronized (interned) {
+            interned.clear();
+        }
+    }
+
+    /**
+     * Returns the amount of formulas currently in the interning table
+     * @return the amount of interned formulas
+     */
+    public static int countInterned() {
+        synchronized (interned) {
+            return interned.size();
+        }
     }
 
     /**
@@ -87,7 +225,7 @@ public class Formula {
      * @return the result of evaluating this formula
      * @throws InvalidFormulaException if this formula is invalid or contains a variable
      */
-    public PyComplex calc() throws InvalidFormulaException {
+    public Complex calc() throws InvalidFormulaException {
         return calc(Map.of());
     }
 
@@ -95,18 +233,286 @@ public class Formula {
      * Evaluates this formula
      * @param vars the variables to use
      * @return the result of evaluating this formula
-     * @throws InvalidFormulaException if this formula is invalid or a variable is undefined
+     * @throws InvalidFormulaException if this formula is invalid, a variable is undefined or an operation is undefined for its operands (e.g. division by zero)
      */
-    public PyComplex calc(Map<String, PyComplex> vars) throws InvalidFormulaException {
-        if (variable != null) {
-            if (vars.containsKey(variable)) return vars.get(variable);
-            else
-                throw new InvalidFormulaException("Formula contains a reference to variable '%s', which is not defined".formatted(variable));
-        } else if (constant != null) return constant;
-        else if (op != null && b != null) return op.f().apply(a.calc(vars), b.calc(vars));
-        else if (f != null) return f.apply(a.calc(vars));
-        else
-            throw new InvalidFormulaException("Formula does not contain an operation and second operand or unary function");
+    public Complex calc(Map<String, Complex> vars) throws InvalidFormulaException {
+        return calc(vars, null);
+    }
+
+    /**
+     * Evaluates this formula, aborting if evaluating it takes more than the specified budget.
+     * The estimated cost is checked before evaluating, so formulas that are obviously too expensive are not evaluated at all.
+     * @param vars the variables to use
+     * @param budget the budget to charge every operation and function to, or {@code null} to not limit evaluation
+     * @return the result of evaluating this formula
+     * @throws InvalidFormulaException if this formula is invalid, a variable is undefined, an operation is undefined for its operands
+     * or the budget was exceeded
+     */
+    public Complex calc(Map<String, Complex> vars, @Nullable EvaluationBudget budget) throws InvalidFormulaException {
+        if (budget != null) budget.check(estimateCost());
+        Complex value = traverse(vars, null, null, budget).value();
+        assert value != null;
+        return value;
+    }
+
+    /**
+     * Estimates the cost of evaluating this formula, which is the sum of the costs of all operations and functions
+     * in it (see {@link CalculateButton#getCost(Operation)}), except the ones in subexpressions that are already remembered.
+     * Shared subexpressions are counted every time they appear, since they are evaluated every time.
+     * @return the estimated cost
+     * @throws InvalidFormulaException if this formula is invalid
+     */
+    public long estimateCost() throws InvalidFormulaException {
+        if (operations < 0) throw new InvalidFormulaException("Formula does not contain an operation and second operand or unary function");
+        Formula[] nodes = new Formula[16];
+        int depth = 0;
+        long cost = 0;
+        nodes[depth++] = this;
+        while (depth > 0) {
+            Formula node = nodes[--depth];
+            if (node.value != null || node.operations == 0) continue;
+            if (depth + 2 > nodes.length) nodes = Arrays.copyOf(nodes, nodes.length * 2);
+            if (node.op != null && node.b != null) {
+                cost += CalculateButton.getCost(node.op);
+                nodes[depth++] = node.b;
+            } else cost += CalculateButton.getCost(node.f);
+            nodes[depth++] = node.a;
+        }
+        return cost;
+    }
+
+    /**
+     * Evaluates this formula exactly, if it only contains rational numbers.<br>
+     * Integral constants are converted to {@link Rational}s, which are stored as {@code long}s until an operation overflows.
+     * The result is exact as long as every operation and function has an exact implementation (see {@link Intrinsics})
+     * and gives a rational result, otherwise {@code null} is returned, and {@link Formula#calc()} should be used instead.
+     * @return the exact result of evaluating this formula, or {@code null} if it cannot be evaluated exactly
+     * or evaluating it fails (in which case {@link Formula#calc()} throws the appropriate exception)
+     */
+    public @Nullable Rational calcExact() {
+        Formula[] nodes = new Formula[16];
+        boolean[] visited = new boolean[16];
+        Rational[] values = new Rational[16];
+        int depth = 0, count = 0;
+        nodes[depth++] = this;
+        while (depth > 0) {
+            Formula node = nodes[depth - 1];
+            Rational value;
+            if (node.constant != null) value = Rational.of(node.constant);
+            else if (node.variable != null) return null;
+            else if (!visited[depth - 1]) {
+                if ((node.op == null || node.b == null) && node.f == null) return null;
+                visited[depth - 1] = true;
+                if (depth + 2 > nodes.length) {
+                    nodes = Arrays.copyOf(nodes, nodes.length * 2);
+                    visited = Arrays.copyOf(visited, visited.length * 2);
+                }
+                if (node.op != null && node.b != null) {
+                    visited[depth] = false;
+                    nodes[depth++] = node.b;
+                }
+                visited[depth] = false;
+                nodes[depth++] = node.a;
+                continue;
+            } else try {
+                if (node.op != null && node.b != null) {
+                    BinaryOperator<Rational> op = Intrinsics.getExactOperation(node.op);
+                    count -= 2;
+                    value = op == null ? null : op.apply(values[count], values[count + 1]);
+                } else {
+                    UnaryOperator<Rational> f = Intrinsics.getExactFunction(node.f);
+                    count--;
+                    value = f == null ? null : f.apply(values[count]);
+                }
+            } catch (ArithmeticException e) {
+                return null;
+            }
+            if (value == null) return null;
+            depth--;
+            if (count == values.length) values = Arrays.copyOf(values, count * 2);
+            values[count++] = value;
+        }
+        return values[0];
+    }
+
+    /**
+     * Evaluates this formula, counts it's operations and converts it to a string in a single pass.
+     * Equivalent to calling {@link Formula#calc(Map)}, {@link Formula#countOperations()}
+     * and {@link Formula#toString(GameState)}, but the tree is only walked once.
+     * @param vars the variables to use
+     * @param state the state to use to stringify numbers, if {@code null} uses {@link Complex#toString()}
+     * @return the value, the amount of operations and the string representation of this formula
+     * @throws InvalidFormulaException if this formula is invalid, a variable is undefined or an operation is undefined for its operands
+     */
+    public Evaluation evaluate(Map<String, Complex> vars, @Nullable GameState state) throws InvalidFormulaException {
+        return evaluate(vars, state, null);
+    }
+
+    /**
+     * Evaluates this formula, counts it's operations and converts it to a string in a single pass,
+     * aborting if evaluating it takes more than the specified budget
+     * @param vars the variables to use
+     * @param state the state to use to stringify numbers, if {@code null} uses {@link Complex#toString()}
+     * @param budget the budget to charge every operation and function to, or {@code null} to not limit evaluation
+     * @return the value, the amount of operations and the string representation of this formula
+     * @throws InvalidFormulaException if this formula is invalid, a variable is undefined, an operation is undefined for its operands
+     * or the budget was exceeded
+     * @see Formula#calc(Map, EvaluationBudget)
+     */
+    public Evaluation evaluate(Map<String, Complex> vars, @Nullable GameState state, @Nullable EvaluationBudget budget) throws InvalidFormulaException {
+        if (budget != null) budget.check(estimateCost());
+        return traverse(vars, new StringBuilder(), state, budget);
+    }
+
+    /**
+     * Walks this formula in order without recursion, so the depth of the formula is only limited by the heap.
+     * Every node is visited once before its operands (to open a bracket), once between them (to append the operation)
+     * and once after them (to close the bracket and apply the operation to the two topmost values), like evaluating postfix notation.
+     * @param vars the variables to use, or {@code null} to skip evaluating
+     * @param out the builder to append the string representation to, or {@code null} to skip stringifying
+     * @param state the state to use to stringify numbers, if {@code null} uses {@link Complex#toString()}
+     * @param budget the budget to charge every evaluated operation and function to, or {@code null} to not limit evaluation
+     * @return the result, with {@code null} in place of the parts that were skipped
+     * @throws InvalidFormulaException if this formula is invalid, a variable is undefined, an operation is undefined for its operands
+     * or the budget was exceeded
+     */
+    protected Evaluation traverse(@Nullable Map<String, Complex> vars, @Nullable StringBuilder out, @Nullable GameState state,
+                                  @Nullable EvaluationBudget budget) throws InvalidFormulaException {
+        Formula[] nodes = new Formula[16];
+        byte[] stages = new byte[16];
+        Complex[] values = new Complex[16];
+        int depth = 0, count = 0, operations = 0;
+        nodes[depth++] = this;
+        while (depth > 0) {
+            Formula node = nodes[depth - 1];
+            byte stage = stages[depth - 1];
+            if (node.variable != null || node.constant != null) {
+                if (out != null) {
+                    if (node.variable != null) out.append(node.variable);
+                    else if (state == null) out.append(node.constant);
+                    else state.appendNum(out, node.constant);
+                }
+                if (vars != null) {
+                    if (count == values.length) values = Arrays.copyOf(values, count * 2);
+                    values[count++] = node.constant != null ? node.constant : getVariable(vars, node.variable);
+                }
+                depth--;
+                continue;
+            }
+            boolean binary = node.op != null && node.b != null;
+            if (!binary && node.f == null)
+                throw new InvalidFormulaException("Formula does not contain an operation and second operand or unary function");
+            if (out == null && stage == 0 && (vars == null || node.value != null)) {
+                // the subtree does not have to be walked
+                if (vars != null) {
+                    if (count == values.length) values = Arrays.copyOf(values, count * 2);
+                    values[count++] = node.value;
+                }
+                if (node.operations < 0)
+                    throw new InvalidFormulaException("Formula does not contain an operation and second operand or unary function");
+                operations += node.operations;
+                depth--;
+                continue;
+            }
+            if (stage == 0 || (binary && stage == 1)) {
+                if (out != null) {
+                    if (stage == 1) out.append(CalculateButton.rev_ops.get(node.op));
+                    else if (binary) out.append('(');
+                    else out.append(CalculateButton.rev_funcs.get(node.f)).append('(');
+                }
+                stages[depth - 1]++;
+                if (depth == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, depth * 2);
+                    stages = Arrays.copyOf(stages, depth * 2);
+                }
+                nodes[depth] = stage == 0 ? node.a : node.b;
+                stages[depth++] = 0;
+                continue;
+            }
+            if (out != null) out.append(')');
+            if (vars != null) {
+                if (binary) count--;
+                if (node.value != null) values[count - 1] = node.value;
+                else try {
+                    if (budget != null) budget.charge(binary ? CalculateButton.getCost(node.op) : CalculateButton.getCost(node.f));
+                    values[count - 1] = binary ? node.op.f().apply(values[count - 1], values[count]) : node.f.apply(values[count - 1]);
+                    if (node.memoizable) node.value = values[count - 1];
+                } catch (ArithmeticException e) {
+                    throw new InvalidFormulaException(e.getMessage());
+                }
+            }
+            operations++;
+            depth--;
+        }
+        return new Evaluation(vars == null ? null : values[0], operations, out == null ? null : out.toString());
+    }
+
+    /**
+     * Looks up a variable when evaluating a formula
+     * @param vars the variables to use
+     * @param name the name of the variable
+     * @return the value of the variable
+     * @throws InvalidFormulaException if the variable is undefined
+     */
+    static Complex getVariable(Map<String, Complex> vars, String name) throws InvalidFormulaException {
+        Complex value = vars.get(name);
+        if (value == null)
+            throw new InvalidFormulaException("Formula contains a reference to variable '%s', which is not defined".formatted(name));
+        return value;
+    }
+
+    /**
+     * Compiles this formula, which makes evaluating it many times faster.
+     * Used by {@link CalculateButton#getCached(String, GameState)} for cached formulas that have to be evaluated again.
+     * @return the compiled formula
+     * @throws InvalidFormulaException if this formula is invalid
+     * @see CompiledFormula
+     */
+    public CompiledFormula compile() throws InvalidFormulaException {
+        return CompiledFormula.compile(this);
+    }
+
+    /**
+     * Optimizes this formula, which makes evaluating it cheaper if it has constant or repeated subexpressions.
+     * @return the optimized formula
+     * @throws InvalidFormulaException if this formula is invalid
+     * @see OptimizedFormula
+     */
+    public OptimizedFormula optimize() throws InvalidFormulaException {
+        return OptimizedFormula.optimize(this);
+    }
+
+    /**
+     * Optimizes this formula, charging the operations and functions evaluated when folding constants to a budget
+     * @param budget the budget to charge folded operations and functions to, or {@code null} to not limit folding
+     * @return the optimized formula
+     * @throws InvalidFormulaException if this formula is invalid or the budget was exceeded
+     * @see OptimizedFormula#optimize(Formula, EvaluationBudget)
+     */
+    public OptimizedFormula optimize(@Nullable EvaluationBudget budget) throws InvalidFormulaException {
+        return OptimizedFormula.optimize(this, budget);
+    }
+
+    /**
+     * Prepares this formula for evaluating it on several threads, which makes evaluating it faster
+     * if it contains expensive operations or functions that are pure and thread-safe.
+     * Forked subexpressions are evaluated in {@link ForkJoinPool#commonPool()}.
+     * @param threshold the smallest estimated cost of a subexpression that is worth evaluating on another thread
+     * @return the prepared formula
+     * @throws InvalidFormulaException if this formula is invalid
+     * @see ParallelFormula
+     */
+    public ParallelFormula parallelize(long threshold) throws InvalidFormulaException {
+        return ParallelFormula.prepare(this, threshold, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Returns whether the value of this formula can be remembered after evaluating it,
+     * i.e. it has no variables and only uses pure operations and functions
+     * @return whether this formula always has the same value
+     */
+    public boolean isMemoizable() {
+        return memoizable;
     }
 
     /**
@@ -115,27 +521,18 @@ public class Formula {
      * @throws InvalidFormulaException if this formula is invalid
      */
     public int countOperations() throws InvalidFormulaException {
-        if (constant != null) return 0;
-        else if (variable != null) return 0;
-        else if (op != null && b != null) return a.countOperations() + 1 + b.countOperations();
-        else if (f != null) return 1 + a.countOperations();
-        else
-            throw new InvalidFormulaException("Formula does not contain an operation and second operand or unary function");
+        if (operations < 0) throw new InvalidFormulaException("Formula does not contain an operation and second operand or unary function");
+        return operations;
     }
 
     /**
      * Returns a human-readable string representation of this object
-     * @param state the state to use to stringify numbers using {@link GameState#numToString(PyComplex)}, if {@code null} uses {@link PyComplex#toString()}
+     * @param state the state to use to stringify numbers using {@link GameState#numToString(Complex)}, if {@code null} uses {@link Complex#toString()}
      * @return a human-readable string representation of this object
      * @throws InvalidFormulaException if this formula is invalid
      */
     public String toString(@Nullable GameState state) throws InvalidFormulaException {
-        if (variable != null) return variable;
-        if (constant != null) return state == null ? constant.toString() : state.numToString(constant);
-        if (f != null) return CalculateButton.rev_funcs.get(f) + '(' + a.toString(state) + ')';
-        if (op == null || b == null)
-            throw new InvalidFormulaException("Formula does not contain an operation and second operand");
-        return '(' + a.toString(state) + CalculateButton.rev_ops.get(op) + b.toString(state) + ')';
+        return traverse(null, new StringBuilder(), state, null).string();
     }
 
     /**
@@ -158,106 +555,28 @@ public class Formula {
      * @param f the function to wrap into
      * @return the resulting formula
      */
-    public Formula andThen(Function<PyComplex, PyComplex> f) {
-        Formula formula = new Formula();
-        formula.a = this;
-        formula.f = f;
-        return formula;
+    public Formula andThen(UnaryOperator<Complex> f) {
+        return intern(new Formula(this, null, null, f, null, null));
     }
 
     /**
-     * Parses a mathematical expression from a string
-     * @param s the string to parse from
-     * @param start the start index
-     * @param end the end index
-     * @param prev_priority the priority of the previous operation if there was any (used when calling recursively), {@code 0} otherwise
-     * @return the parsed formula
-     * @throws InvalidFormulaException if the string is not a valid mathematical expression
+     * Returns whether the specified object is a formula of the same kind, with the same operation, function, constant or variable,
+     * and the same (not just equal) operands. For interned formulas this is the same as being structurally equal,
+     * since equal operands are the same object.
+     * @param o the object to compare to
+     * @return whether the object is equal to this formula
      */
-    private static Formula fromString(String s, int start, int end, int prev_priority) throws InvalidFormulaException {
-        Formula cur = new Formula();
-        cur.constant = new PyComplex(0);
-        StringBuilder cur_func = new StringBuilder();
-        int last_op = start - 1;
-        for (int i = start; i < end; i++) {
-            char c = s.charAt(i);
-            if (Character.isDigit(c) || c == 'j') {
-                if (cur.constant == null) {
-                    if (cur.op == null)
-                        cur.constant = c == 'j' ? new PyComplex(0, 1) : new PyComplex(Integer.parseInt(Character.toString(c)));
-                    else {
-                        cur.b = fromString(s, i, end, cur.op.priority());
-                        if (cur.b.tmp_return_info != -1)
-                            i = cur.b.tmp_return_info;
-                    }
-                } else {
-                    cur.constant = c == 'j' ? cur.constant.__mul__(new PyComplex(0, 1)).__complex__() : cur.constant.__mul__(new PyComplex(10)).__add__(new PyComplex(Integer.parseInt(Character.toString(c)))).__complex__();
-                }
-            } else if (Character.isLetter(c)) {
-                cur_func.append(c);
-            } else if (c == '(') {
-                int tmp = i;
-                while (i < end && s.charAt(i) != ')') i++;
-                if (s.charAt(i) != ')') throw new InvalidFormulaException("Unclosed bracket at " + tmp);
-                Formula idk = fromString(s, tmp + 1, i, 0);
-                if (!cur_func.isEmpty()) {
-                    if (!CalculateButton.funcs.containsKey(cur_func.toString()))
-                        throw new InvalidFormulaException("Function does not exist: " + cur_func);
-                    idk = idk.andThen(CalculateButton.funcs.get(cur_func.toString()));
-                    cur_func = new StringBuilder();
-                }
-                idk.tmp_return_info = -2;
-                if (cur.constant == null) {
-                    if (cur.op == null) cur = idk;
-                    else cur.b = idk;
-                } else cur = idk;
-                last_op = tmp - 1;
-            } else if (c == ')')
-                throw new InvalidFormulaException("Unexpected closing bracket at " + i);
-            else {
-                if (!cur_func.isEmpty()) {
-                    cur.variable = cur_func.toString();
-                    cur_func = new StringBuilder();
-                }
-                if (!CalculateButton.ops.containsKey(Character.toString(c)))
-                    throw new InvalidFormulaException("Operation does not exist: " + c);
-                Operation op = CalculateButton.ops.get(Character.toString(c));
-                if (op.priority() <= prev_priority) {
-                    cur.tmp_return_info = i - 1;
-                    return cur;
-                }
-                if (cur.op == null) {
-                    cur.a = new Formula();
-                    cur.a.constant = cur.constant;
-                    cur.a.variable = cur.variable;
-                    cur.constant = null;
-                    cur.variable = null;
-                    cur.op = op;
-                    last_op = i;
-                } else {
-                    if (cur.op.priority() >= op.priority() || cur.tmp_return_info == -2) {
-                        if (cur.a != null && cur.b == null && c == '-') {
-                            cur = new Formula(cur.a, cur.op, new Formula(new Formula(new PyComplex(0.)), op, fromString(s, i + 1, end, cur.op.priority())));
-                            assert cur.b != null && cur.b.b != null;
-                            if (cur.b.b.tmp_return_info != -1)
-                                i = cur.b.b.tmp_return_info;
-                        } else {
-                            cur = new Formula(cur, op, null);
-                            last_op = i;
-                        }
-                    } else {
-                        cur = new Formula(cur.a, cur.op, fromString(s, last_op + 1, end, cur.op.priority()));
-                        assert cur.b != null;
-                        if (cur.b.tmp_return_info != -1)
-                            i = cur.b.tmp_return_info;
-                    }
-                }
-            }
-        }
-        cur.tmp_return_info = end;
-        if (!cur_func.isEmpty() && cur.op != null) cur.b = new Formula(cur_func.toString());
-        else if (!cur_func.isEmpty()) cur.variable = cur_func.toString();
-        return cur;
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Formula other) || hash != other.hash) return false;
+        return a == other.a && b == other.b && op == other.op && f == other.f
+                && Objects.equals(constant, other.constant) && Objects.equals(variable, other.variable);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
     }
 
     /**
@@ -265,22 +584,54 @@ public class Formula {
      * @param s the string to parse from
      * @return the parsed formula
      * @throws InvalidFormulaException if the string is not a valid mathematical expression
+     * @see FormulaParser
      */
     public static Formula fromString(String s) throws InvalidFormulaException {
-        String tmp = s.replaceAll("(?<=[0-9])(eE)(?=[0-9])", "*10^");
-        return fromString(tmp, 0, tmp.length(), 0);
+        return FormulaParser.parse(s);
+    }
+
+    /**
+     * The result of {@link Formula#evaluate(Map, GameState)}
+     * @param value the result of evaluating the formula
+     * @param operations the amount of operations in the formula
+     * @param string the human-readable string representation of the formula
+     */
+    public record Evaluation(@Nullable Complex value, int operations, @Nullable String string) {
     }
 
     /**
      * Thrown if the formula provided is invalid
      */
     public static class InvalidFormulaException extends Exception {
+        /**
+         * The index of the character in the parsed string that caused this exception, or {@code -1} if unknown
+         */
+        private final int offset;
+
         /**
          * Constructs the exception
          * @param s the message to log when caught
          */
         public InvalidFormulaException(String s) {
+            this(s, -1);
+        }
+
+        /**
+         * Constructs the exception
+         * @param s the message to log when caught
+         * @param offset the index of the character in the parsed string that caused this exception
+         */
+        public InvalidFormulaException(String s, int offset) {
             super(s);
+            this.offset = offset;
+        }
+
+        /**
+         * Returns the index of the character in the parsed string that caused this exception
+         * @return the index, or {@code -1} if the exception was not caused by parsing
+         */
+        public int getOffset() {
+            return offset;
         }
     }
 }
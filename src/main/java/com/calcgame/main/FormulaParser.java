@@ -0,0 +1,407 @@
+package com.calcgame.main;
+
+import com.calcgame.main.buttons.CalculateButton;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.function.UnaryOperator;
+
+/**
+ * A single-pass operator-precedence (shunting-yard) parser for mathematical expressions.<br>
+ * Every character is looked at once and every operand and operation is pushed and popped once,
+ * so parsing takes linear time, and no recursion is used, so deeply nested brackets cannot overflow the stack.
+ * The stacks are immutable linked lists, so the state between two tokens can be saved in constant time
+ * and parsing can be resumed from it later, which is used by {@link IncrementalParser}.<br>
+ * The grammar is the following:
+ * <ul>
+ *     <li>a number is a run of digits and {@code j}s, each {@code j} multiplies the value so far by the imaginary unit;</li>
+ *     <li>{@code <digit>eE<digit>} is shorthand for {@code <digit>*10^<digit>};</li>
+ *     <li>a name from {@link CalculateButton#funcs} followed by {@code (} is a function, the longest such name is used.
+ *     Otherwise a run of letters is a variable;</li>
+ *     <li>the longest symbol from {@link CalculateButton#ops} at the position of any other character is an operation,
+ *     symbols may be longer than one character. Symbols starting with a letter are only recognized after an operand.
+ *     Operations of the same priority are left-associative;</li>
+ *     <li>an operation at the start of the expression or of a bracket, or directly after an operation with a lower priority,
+ *     has {@code 0} as it's first operand (so {@code 2*.5} is {@code 2*(0.5)}), and an empty expression is {@code 0};</li>
+ *     <li>{@code -} directly after another operation is {@code (0-x)}, where {@code x} only extends over operations
+ *     with a higher priority than the previous one.</li>
+ * </ul>
+ * Operations and functions are found using the {@link SymbolTrie} from {@link CalculateButton#getSymbols()}.
+ * @see Formula#fromString(String)
+ */
+public class FormulaParser {
+    /**
+     * The string being parsed
+     */
+    protected final String s;
+
+    /**
+     * The operands that have already been parsed, the topmost one first
+     */
+    protected @Nullable Node<Formula> operands;
+
+    /**
+     * The operations and opening brackets that were not applied yet, the topmost one first
+     */
+    protected @Nullable Node<Pending> pending;
+
+    /**
+     * Whether an operand is expected next (i.e. the last token was an operation or an opening bracket)
+     */
+    protected boolean expect_operand = true;
+
+    /**
+     * Whether the expression or the current bracket has no tokens yet
+     */
+    protected boolean group_start = true;
+
+    /**
+     * The largest index of a character the parsed tokens depend on, or {@code -1} if none were looked at.
+     * May be equal to the length of the string if a token depends on the string ending there.
+     */
+    protected int examined = -1;
+
+    /**
+     * Constructs a parser for the specified string, use {@link FormulaParser#parse(String)} instead
+     * @param s the string to parse
+     */
+    protected FormulaParser(String s) {
+        this.s = s;
+    }
+
+    /**
+     * Constructs a parser that continues parsing the specified string from a saved state
+     * @param s the string to parse, must be equal to the string the state was saved from up to {@link State#examined()}
+     * @param state the state to continue from
+     */
+    protected FormulaParser(String s, State state) {
+        this.s = s;
+        this.operands = state.operands();
+        this.pending = state.pending();
+        this.expect_operand = state.expect_operand();
+        this.group_start = state.group_start();
+        this.examined = state.examined();
+    }
+
+    /**
+     * Parses a mathematical expression from a string without whitespace
+     * @param s the string to parse
+     * @return the parsed formula
+     * @throws Formula.InvalidFormulaException if the string is not a valid mathematical expression,
+     * {@link Formula.InvalidFormulaException#getOffset()} is the index of the offending character
+     */
+    public static Formula parse(String s) throws Formula.InvalidFormulaException {
+        return new FormulaParser(s).parse();
+    }
+
+    /**
+     * Parses the whole string
+     * @return the parsed formula
+     * @throws Formula.InvalidFormulaException if the string is not a valid mathematical expression
+     */
+    protected Formula parse() throws Formula.InvalidFormulaException {
+        int i = 0;
+        while (i < s.length()) i = readToken(i);
+        return finish();
+    }
+
+    /**
+     * Reads a single token (a number, a name, a bracket or an operation)
+     * @param i the index of the first character of the token
+     * @return the index after the token
+     * @throws Formula.InvalidFormulaException if the token is not valid at this position
+     */
+    protected int readToken(int i) throws Formula.InvalidFormulaException {
+        char c = at(i);
+        if (Character.isDigit(c) || c == 'j') return readNumber(i);
+        if (c == '(') {
+            if (!expect_operand) throw new Formula.InvalidFormulaException("Expected an operation at " + i, i);
+            pending = new Node<>(new Pending(null, 0, i, null), pending);
+            group_start = true;
+            return i + 1;
+        }
+        if (c == ')') {
+            closeBracket(i);
+            return i + 1;
+        }
+        boolean letter = Character.isLetter(c);
+        if (!letter || !expect_operand) {
+            int end = readOperation(i);
+            if (end > i) return end;
+        }
+        if (letter) return readName(i);
+        throw new Formula.InvalidFormulaException("Operation does not exist: %s at %d".formatted(c, i), i);
+    }
+
+    /**
+     * Reads the longest operation symbol starting at the specified index, and pushes the operation
+     * @param start the index of the first character of the symbol
+     * @return the index after the symbol, or {@code start} if no symbol starts at this index
+     * @throws Formula.InvalidFormulaException if the operation is missing it's first operand
+     */
+    protected int readOperation(int start) throws Formula.InvalidFormulaException {
+        SymbolTrie symbols = CalculateButton.getSymbols();
+        Operation op = null;
+        int end = start;
+        for (int i = start, state = SymbolTrie.ROOT; symbols.hasTransitions(state) && (state = symbols.step(state, at(i))) >= 0; ) {
+            i++;
+            if (symbols.getOperation(state) != null) {
+                op = symbols.getOperation(state);
+                end = i;
+            }
+        }
+        if (op != null) pushOperation(op, end == start + 1 && at(start) == '-', start);
+        return end;
+    }
+
+    /**
+     * Applies all pending operations as if the string ended after the last token read.
+     * After this method is called this parser must not be used anymore, but the saved states are not affected.
+     * @return the parsed formula
+     * @throws Formula.InvalidFormulaException if the string ends with an operation or there is an unclosed bracket
+     */
+    protected Formula finish() throws Formula.InvalidFormulaException {
+        if (expect_operand) {
+            if (!group_start) throw new Formula.InvalidFormulaException("Unexpected end of formula at " + s.length(), s.length());
+            push(Formula.of(Complex.ZERO));
+        }
+        while (pending != null) {
+            Pending top = pending.head();
+            pending = pending.tail();
+            if (top.op == null) throw new Formula.InvalidFormulaException("Unclosed bracket at " + top.pos, top.pos);
+            apply(top);
+        }
+        return pop();
+    }
+
+    /**
+     * Saves the current state of this parser
+     * @param pos the index of the next token
+     * @return the saved state
+     */
+    protected State save(int pos) {
+        return new State(operands, pending, expect_operand, group_start, pos, examined);
+    }
+
+    /**
+     * Returns the character at the specified index, and records that the parsed tokens depend on it
+     * @param i the index of the character
+     * @return the character, or {@code '\0'} if the index is after the end of the string
+     */
+    protected char at(int i) {
+        if (i > examined) examined = i;
+        return i < s.length() ? s.charAt(i) : '\0';
+    }
+
+    /**
+     * Pushes an operand onto the operand stack
+     * @param f the operand
+     */
+    protected void push(Formula f) {
+        operands = new Node<>(f, operands);
+    }
+
+    /**
+     * Pops the topmost operand from the operand stack
+     * @return the operand
+     */
+    protected Formula pop() {
+        assert operands != null;
+        Formula f = operands.head();
+        operands = operands.tail();
+        return f;
+    }
+
+    /**
+     * Reads a number starting at the specified index, and pushes it as an operand
+     * @param start the index of the first digit
+     * @return the index after the number
+     * @throws Formula.InvalidFormulaException if an operand is not expected at this position
+     */
+    protected int readNumber(int start) throws Formula.InvalidFormulaException {
+        if (!expect_operand) throw new Formula.InvalidFormulaException("Expected an operation at " + start, start);
+        double real = 0, imag = 0;
+        int i = start;
+        for (; ; i++) {
+            char c = at(i);
+            if (c == 'j') {
+                double tmp = real;
+                real = 0 - imag;
+                imag = tmp;
+            } else if (Character.isDigit(c)) {
+                real = real * 10 + Character.digit(c, 10);
+                imag = imag * 10;
+            } else break;
+        }
+        push(Formula.of(new Complex(real, imag)));
+        expect_operand = false;
+        group_start = false;
+        if (isExponent(i)) {
+            pushOperation(getOperation("*", i), false, i);
+            push(Formula.of(Complex.of(10)));
+            expect_operand = false;
+            pushOperation(getOperation("^", i), false, i);
+            return i + 2;
+        }
+        return i;
+    }
+
+    /**
+     * Returns whether the specified index is the start of the {@code eE} shorthand for {@code *10^}
+     * @param i the index directly after a number
+     * @return whether {@code eE} is at the index, and is surrounded by ASCII digits
+     */
+    protected boolean isExponent(int i) {
+        return i > 0 && at(i) == 'e' && at(i + 1) == 'E' && isAsciiDigit(at(i - 1)) && isAsciiDigit(at(i + 2));
+    }
+
+    /**
+     * Returns whether the character is one of {@code 0123456789}
+     * @param c the character to check
+     * @return whether the character is an ASCII digit
+     */
+    private static boolean isAsciiDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Reads a function or variable name starting at the specified index.
+     * The longest function name that is followed by an opening bracket is read together with the bracket,
+     * if there is none a run of letters is read as a variable.
+     * @param start the index of the first letter
+     * @return the index after the name (and the bracket)
+     * @throws Formula.InvalidFormulaException if an operand is not expected at this position, or the function does not exist
+     */
+    protected int readName(int start) throws Formula.InvalidFormulaException {
+        if (!expect_operand) throw new Formula.InvalidFormulaException("Expected an operation at " + start, start);
+        SymbolTrie symbols = CalculateButton.getSymbols();
+        UnaryOperator<Complex> f = null;
+        int end = start;
+        for (int i = start, state = SymbolTrie.ROOT; symbols.hasTransitions(state) && (state = symbols.step(state, at(i))) >= 0; ) {
+            i++;
+            if (symbols.getFunction(state) != null && at(i) == '(') {
+                f = symbols.getFunction(state);
+                end = i;
+            }
+        }
+        if (f != null) {
+            pending = new Node<>(new Pending(null, 0, end, f), pending);
+            group_start = true;
+            return end + 1;
+        }
+        int i = start;
+        while (Character.isLetter(at(i)) && at(i) != 'j') i++;
+        String name = s.substring(start, i);
+        if (at(i) == '(')
+            throw new Formula.InvalidFormulaException("Function does not exist: %s at %d".formatted(name, start), start);
+        push(Formula.of(name));
+        expect_operand = false;
+        group_start = false;
+        return i;
+    }
+
+    /**
+     * Looks up an operation that is inserted by the parser itself
+     * @param symbol the symbol of the operation
+     * @param pos the index in the string the operation belongs to
+     * @return the operation
+     * @throws Formula.InvalidFormulaException if the operation does not exist
+     */
+    private static Operation getOperation(String symbol, int pos) throws Formula.InvalidFormulaException {
+        Operation op = CalculateButton.ops.get(symbol);
+        if (op == null) throw new Formula.InvalidFormulaException("Operation does not exist: %s at %d".formatted(symbol, pos), pos);
+        return op;
+    }
+
+    /**
+     * Pushes an operation, applying all pending operations with a higher or equal priority first
+     * @param op the operation
+     * @param minus whether the operation is {@code -}, which may be used to negate the next operand
+     * @param pos the index of the operation in the string
+     * @throws Formula.InvalidFormulaException if the operation is missing it's first operand
+     */
+    protected void pushOperation(Operation op, boolean minus, int pos) throws Formula.InvalidFormulaException {
+        if (expect_operand) {
+            Pending previous = pending == null ? null : pending.head();
+            if (group_start || (previous != null && op.priority() > previous.priority)) {
+                push(Formula.of(Complex.ZERO));
+            } else if (minus) {
+                assert previous != null && previous.op != null;
+                push(Formula.of(Complex.ZERO));
+                pending = new Node<>(new Pending(op, previous.priority, pos, null), pending);
+                return;
+            } else throw new Formula.InvalidFormulaException("Expected an operand at " + pos, pos);
+        }
+        while (pending != null && pending.head().op != null && pending.head().priority >= op.priority()) {
+            apply(pending.head());
+            pending = pending.tail();
+        }
+        pending = new Node<>(new Pending(op, op.priority(), pos, null), pending);
+        expect_operand = true;
+        group_start = false;
+    }
+
+    /**
+     * Closes the innermost bracket, applying all operations inside it
+     * @param pos the index of the closing bracket
+     * @throws Formula.InvalidFormulaException if there is no open bracket, or the bracket ends with an operation
+     */
+    protected void closeBracket(int pos) throws Formula.InvalidFormulaException {
+        if (expect_operand) {
+            if (!group_start) throw new Formula.InvalidFormulaException("Expected an operand at " + pos, pos);
+            push(Formula.of(Complex.ZERO));
+        }
+        while (pending != null && pending.head().op != null) {
+            apply(pending.head());
+            pending = pending.tail();
+        }
+        if (pending == null) throw new Formula.InvalidFormulaException("Unexpected closing bracket at " + pos, pos);
+        Pending bracket = pending.head();
+        pending = pending.tail();
+        if (bracket.function != null) push(pop().andThen(bracket.function));
+        expect_operand = false;
+        group_start = false;
+    }
+
+    /**
+     * Applies a pending operation to the two topmost operands
+     * @param pending the operation to apply
+     */
+    protected void apply(Pending pending) {
+        Formula b = pop();
+        Formula a = pop();
+        push(Formula.of(a, pending.op, b));
+    }
+
+    /**
+     * An operation or opening bracket that was not applied yet
+     * @param op the operation, or {@code null} if this is a bracket
+     * @param priority the priority used to decide when to apply the operation,
+     *                 may be lower than the operation's own priority if it negates an operand
+     * @param pos the index of the operation or bracket in the string
+     * @param function the function the bracket belongs to, or {@code null} if this is an operation or a plain bracket
+     */
+    protected record Pending(@Nullable Operation op, int priority, int pos, @Nullable UnaryOperator<Complex> function) {
+    }
+
+    /**
+     * An element of an immutable linked list, used as a stack that can be saved without copying
+     * @param head the topmost element
+     * @param tail the rest of the stack, or {@code null} if it is empty
+     * @param <T> the type of the elements
+     */
+    protected record Node<T>(T head, @Nullable Node<T> tail) {
+    }
+
+    /**
+     * The state of a parser between two tokens
+     * @param operands the operands that have already been parsed
+     * @param pending the operations and opening brackets that were not applied yet
+     * @param expect_operand whether an operand is expected next
+     * @param group_start whether the expression or the current bracket has no tokens yet
+     * @param pos the index of the next token
+     * @param examined the largest index of a character the parsed tokens depend on
+     */
+    protected record State(@Nullable Node<Formula> operands, @Nullable Node<Pending> pending, boolean expect_operand,
+                        boolean group_start, int pos, int examined) {
+    }
+}
@@ -55,6 +55,7 @@ public class GameLoop {
         addKeyHoldCallback("moveUp", GLFW_KEY_SPACE, () -> renderer.getCamera().movePosition(0, 0.2f, 0));
         addKeyHoldCallback("moveDown", GLFW_KEY_LEFT_SHIFT, () -> renderer.getCamera().movePosition(0, -0.2f, 0));
         window.addKeyCallback("toggleRotation", GLFW_KEY_F, (action, mod) -> toggleRotationLock());
+        window.addKeyCallback("dumpScriptProfile", GLFW_KEY_P, (action, mod) -> ScriptProfiler.dump());
         /*state.getEvent(Events.MOUSE_CLICK).addListener(new Action( "placeObject") {
             @Override
             protected void redoInternal() {
@@ -235,6 +236,8 @@ public class GameLoop {
             gameObject.getMesh().cleanup();
         }
         Texture.cleanup();
+        ScriptProfiler.dump();
+        ModInterpreters.closeAll();
         glfwTerminate();
     }
 }
@@ -7,6 +7,9 @@ import org.apache.logging.log4j.Logger;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.python.core.CompileMode;
+import org.python.core.Py;
+import org.python.core.PyCode;
 import org.python.core.PyComplex;
 import org.python.core.PyObject;
 import org.python.util.PythonInterpreter;
@@ -19,6 +22,8 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.*;
 import java.util.List;
+import java.util.function.BinaryOperator;
+import java.util.function.UnaryOperator;
 
 /**
  * Represents the state of the game at all times.
@@ -119,6 +124,16 @@ public class GameState {
      */
     protected String screen;
 
+    /**
+     * The parser that keeps {@link GameState#screen} parsed while it is edited
+     */
+    protected final IncrementalParser screen_parser = new IncrementalParser();
+
+    /**
+     * Decides whether the screen shows the goal, may be configured by a mod's {@code config.json}
+     */
+    protected final GoalMatcher goal_matcher = new GoalMatcher();
+
     /**
      * The amount of money the player currently has
      */
@@ -215,6 +230,11 @@ public class GameState {
      */
     protected GameLoop gameLoop;
 
+    /**
+     * This game state adapted to a Python object, or {@code null} if it was not passed to a mod script yet
+     */
+    private PyObject py_state;
+
     /**
      * Constructs a new GameState and starts the game.
      */
@@ -331,6 +351,8 @@ public class GameState {
             }
             all_buttons.forEach((b) -> button_lookup.put(b.getString(), b));
             sellable_buttons.addAll(all_buttons);
+            // the buttons' scripts are compiled in the background, or when they are first used
+            all_buttons.forEach(ButtonPreparer::enqueue);
             for (String mod_id : mod_list) {
                 File mod_folder = new File(mods, mod_id);
                 File config = new File(mod_folder, "config.json");
@@ -383,23 +405,39 @@ public class GameState {
                     JSONObject op_json = ops.getJSONObject(op);
                     String op_code = op_json.getString("function");
                     int priority = op_json.isNull("priority") ? 1 : op_json.getInt("priority");
-                    try (PythonInterpreter py = new PythonInterpreter()) {
-                        try {
-                            py.exec(op_code);
-                            PyObject op_func = py.get("f");
-                            if (op_func == null || !op_func.isCallable()) throw new RuntimeException();
-                            CalculateButton.addOperation(op, priority, (a, b) -> {
-                                py.set("__a", a);
-                                py.set("__b", b);
-                                return op_func.__call__(py.get("__a"), py.get("__b")).__complex__();
-                            });
-                        } catch (RuntimeException ignored) {
-                            CalculateButton.addOperation(op, priority, (a, b) -> {
-                                py.set("a", a);
-                                py.set("b", b);
-                                return py.eval(op_code).__complex__();
-                            });
-                        }
+                    if (!op_json.isNull("cost")) CalculateButton.setOperationCost(op, op_json.getInt("cost"));
+                    if (op_json.optBoolean("pure", false))
+                        CalculateButton.setOperationPure(op, op_json.optInt("cache_size", ResultCache.DEFAULT_SIZE));
+                    else CalculateButton.setOperationPure(op, false);
+                    CalculateButton.setOperationThreadSafe(op, op_json.optBoolean("thread_safe", false));
+                    if (!op_json.isNull("time_limit")) ScriptWatchdog.setTimeLimit("%s:%s".formatted(mod_id, op), op_json.getLong("time_limit"));
+                    BinaryOperator<Complex> intrinsic = Intrinsics.getOperation(op_code);
+                    if (intrinsic != null) {
+                        LOGGER.debug("Using a Java implementation of operation '{}': {}", op, op_code);
+                        CalculateButton.addOperation(op, priority, intrinsic, op_code);
+                        continue;
+                    }
+                    String script_name = "%s:%s".formatted(mod_id, op);
+                    PyExpression expression = PyExpression.compile(op_code, "a", "b");
+                    if (expression != null) {
+                        LOGGER.debug("Using a compiled expression for operation '{}': {}", op, op_code);
+                        CalculateButton.addOperation(op, priority, ScriptProfiler.operation(script_name, PyBridge.operation(expression)), op_code);
+                        continue;
+                    }
+                    PyCode code = Utils.compilePy(op_code, script_name, CompileMode.exec, LOGGER);
+                    if (code == null) continue;
+                    // every script gets it's own namespace, the interpreter state is shared by the whole mod
+                    PythonInterpreter py = ModInterpreters.newInterpreter(mod_id);
+                    try {
+                        ScriptWatchdog.load(script_name, () -> py.exec(code));
+                        PyObject op_func = PyBridge.getCallable(py, "f");
+                        if (op_func == null) throw new RuntimeException();
+                        CalculateButton.addOperation(op, priority, ScriptProfiler.operation(script_name, PyBridge.operation(script_name, op_func)), op_code);
+                    } catch (RuntimeException ignored) {
+                        // the expression is compiled as the body of a lambda, so it's operands are passed as arguments instead of globals
+                        PyCode lambda = Utils.compilePy("lambda a, b: (\n%s\n)".formatted(op_code), script_name, CompileMode.eval, LOGGER);
+                        if (lambda == null) continue;
+                        CalculateButton.addOperation(op, priority, ScriptProfiler.operation(script_name, PyBridge.operation(script_name, py.eval(lambda))), op_code);
                     }
                 }
             }
@@ -426,25 +464,52 @@ public class GameState {
                 JSONObject funcs = obj.getJSONObject("functions");
                 for (Iterator<String> it = funcs.keys(); it.hasNext(); ) {
                     String func_name = it.next();
-                    String f_code = funcs.getString(func_name);
-                    try (PythonInterpreter py = new PythonInterpreter()) {
-                        try {
-                            py.exec(f_code);
-                            PyObject op_func = py.get("f");
-                            if (op_func == null || !op_func.isCallable()) throw new RuntimeException();
-                            CalculateButton.addFunction(func_name, (x) -> {
-                                py.set("__x", x);
-                                return op_func.__call__(py.get("__x")).__complex__();
-                            });
-                        } catch (RuntimeException ignored) {
-                            CalculateButton.addFunction(func_name, (x) -> {
-                                py.set("x", x);
-                                return py.eval(f_code).__complex__();
-                            });
-                        }
+                    String f_code;
+                    if (funcs.get(func_name) instanceof JSONObject func_json) {
+                        f_code = func_json.getString("function");
+                        if (!func_json.isNull("cost")) CalculateButton.setFunctionCost(func_name, func_json.getInt("cost"));
+                        if (func_json.optBoolean("pure", false))
+                            CalculateButton.setFunctionPure(func_name, func_json.optInt("cache_size", ResultCache.DEFAULT_SIZE));
+                        else CalculateButton.setFunctionPure(func_name, false);
+                        CalculateButton.setFunctionThreadSafe(func_name, func_json.optBoolean("thread_safe", false));
+                        if (!func_json.isNull("time_limit")) ScriptWatchdog.setTimeLimit("%s:%s".formatted(mod_id, func_name), func_json.getLong("time_limit"));
+                    } else f_code = funcs.getString(func_name);
+                    UnaryOperator<Complex> intrinsic = Intrinsics.getFunction(f_code);
+                    if (intrinsic != null) {
+                        LOGGER.debug("Using a Java implementation of function '{}': {}", func_name, f_code);
+                        CalculateButton.addFunction(func_name, intrinsic);
+                        continue;
+                    }
+                    String script_name = "%s:%s".formatted(mod_id, func_name);
+                    PyExpression expression = PyExpression.compile(f_code, "x");
+                    if (expression != null) {
+                        LOGGER.debug("Using a compiled expression for function '{}': {}", func_name, f_code);
+                        CalculateButton.addFunction(func_name, ScriptProfiler.function(script_name, PyBridge.function(expression)));
+                        continue;
+                    }
+                    PyCode code = Utils.compilePy(f_code, script_name, CompileMode.exec, LOGGER);
+                    if (code == null) continue;
+                    PythonInterpreter py = ModInterpreters.newInterpreter(mod_id);
+                    try {
+                        ScriptWatchdog.load(script_name, () -> py.exec(code));
+                        PyObject op_func = PyBridge.getCallable(py, "f");
+                        if (op_func == null) throw new RuntimeException();
+                        CalculateButton.addFunction(func_name, ScriptProfiler.function(script_name, PyBridge.function(script_name, op_func)));
+                    } catch (RuntimeException ignored) {
+                        PyCode lambda = Utils.compilePy("lambda x: (\n%s\n)".formatted(f_code), script_name, CompileMode.eval, LOGGER);
+                        if (lambda == null) continue;
+                        CalculateButton.addFunction(func_name, ScriptProfiler.function(script_name, PyBridge.function(script_name, py.eval(lambda))));
                     }
                 }
             }
+            if (!obj.isNull("evaluation_budget")) CalculateButton.evaluation_budget = obj.getLong("evaluation_budget");
+            if (!obj.isNull("evaluation_time_limit")) CalculateButton.evaluation_time_limit = obj.getLong("evaluation_time_limit");
+            if (!obj.isNull("script_time_limit")) ScriptWatchdog.default_time_limit = obj.getLong("script_time_limit");
+            if (!obj.isNull("formula_script_time_limit")) ScriptWatchdog.formula_time_limit = obj.getLong("formula_script_time_limit");
+            if (!obj.isNull("script_load_time_limit")) ScriptWatchdog.load_time_limit = obj.getLong("script_load_time_limit");
+            if (!obj.isNull("profile_scripts")) ScriptProfiler.enabled = obj.getBoolean("profile_scripts");
+            if (!obj.isNull("goal_tolerance")) goal_matcher.setTolerance(obj.getDouble("goal_tolerance"));
+            if (!obj.isNull("parallel_threshold")) CalculateButton.parallel_threshold = obj.getLong("parallel_threshold");
             LOGGER.info("Loading mod '{}' completed", mod_id);
         } catch (FileNotFoundException | JSONException e) {
             LOGGER.warn("Unable to load mod config from file '{}': {}", file.getName(), e);
@@ -638,6 +703,15 @@ public class GameState {
         };
     }
 
+    /**
+     * Returns this game state as a Python object, adapted once so passing it to mod scripts does not wrap it again
+     * @return the adapted game state
+     */
+    public PyObject toPy() {
+        if (py_state == null) py_state = Py.java2py(this);
+        return py_state;
+    }
+
     /**
      * Returns the string currently displayed on the calculator screen
      * @return the string currently displayed on the calculator screen
@@ -646,6 +720,16 @@ public class GameState {
         return screen;
     }
 
+    /**
+     * Returns the formula currently displayed on the calculator screen.
+     * The screen is parsed incrementally as it is edited, so this is cheap enough to call after every change, e.g. to preview the result.
+     * @return the parsed formula
+     * @throws Formula.InvalidFormulaException if the screen is not a valid mathematical expression
+     */
+    public Formula getScreenFormula() throws Formula.InvalidFormulaException {
+        return screen_parser.getFormula();
+    }
+
     /**
      * Sets the string on the calculator screen to the specified string
      * @param s the string to display, does not have to be a valid mathematical expression
@@ -654,10 +738,9 @@ public class GameState {
         if (s.startsWith("0") && s.length() > 1) s = s.substring(1);
         if (s.endsWith("+0j)") && s.startsWith("(")) s = s.substring(1, s.length() - 4);
         screen = s;
+        screen_parser.update(s);
         calc_screen.setText(s);
-        try {
-            if (!inShop && Objects.equals(screen, numToString(getGoal()))) endRound();
-        } catch (NumberFormatException ignored) {}
+        if (!inShop && goal_matcher.matches(screen)) endRound();
     }
 
     /**
@@ -683,7 +766,9 @@ public class GameState {
      */
     public void setGoal(PyComplex goal) {
         this.goal = goal;
-        goal_label.setText("Goal: %s".formatted(numToString(goal)));
+        String goal_text = numToString(goal);
+        goal_matcher.setGoal(Complex.of(goal), goal_text);
+        goal_label.setText("Goal: " + goal_text);
     }
 
     /**
@@ -700,10 +785,27 @@ public class GameState {
      * @return A human-readable string representing this number.
      */
     public String numToString(PyComplex x) {
-        if (x.real == 0 && x.imag == 0) return "0";
-        if (x.__cmp__(PyComplex.Inf) == 0) return "Inf";
-        if (Math.abs(x.imag) < 1e-6) return numToString(x.real);
-        else return "%s+%si".formatted(numToString(x.real), numToString(x.imag));
+        return NumberFormatter.toString(Complex.of(x));
+    }
+
+    /**
+     * Returns a human-readable string representing this number. This should be preferred over {@link Complex#toString()}
+     * @param x the number to stringify
+     * @return A human-readable string representing this number.
+     */
+    public String numToString(Complex x) {
+        return NumberFormatter.toString(x);
+    }
+
+    /**
+     * Appends a human-readable string representing this number, equal to {@link GameState#numToString(Complex)},
+     * without creating any intermediate strings
+     * @param out the builder to append to
+     * @param x the number to stringify
+     * @return the builder
+     */
+    public StringBuilder appendNum(StringBuilder out, Complex x) {
+        return NumberFormatter.append(out, x);
     }
 
     /**
@@ -712,9 +814,7 @@ public class GameState {
      * @return A human-readable string representing this number.
      */
     public String numToString(double x) {
-        if (Math.abs(x) > 5e10) return "%.1e".formatted(x);
-        if (Math.abs(x - Math.round(x)) < 1e-6) return "%d".formatted(Math.round(x));
-        else return "%.3f".formatted(x);
+        return NumberFormatter.toString(x);
     }
 
     /**
@@ -809,7 +909,8 @@ public class GameState {
      */
     @ForMods
     public void onRoundStart(String id, PyObject f) {
-        getEvent(Events.ROUND_START).addListener(Action.forFunction(f::__call__, "py_%s_listener".formatted(id)), id);
+        String name = "py_%s_listener".formatted(id);
+        getEvent(Events.ROUND_START).addListener(Action.forFunction(() -> ScriptWatchdog.run(name, f::__call__), name), id);
     }
 
     /**
@@ -0,0 +1,289 @@
+package com.calcgame.main;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Decides whether the calculator screen shows the goal of the current round.<br>
+ * The goal and it's string representation are stored once per round (see {@link GoalMatcher#setGoal(Complex, String)}),
+ * and every time the screen changes it is read as a number and compared to the goal with a tolerance,
+ * so no number is formatted and no exception is thrown while the player is typing. A screen matches if it is
+ * a number literal within the tolerance of the goal, or shows exactly the string the goal is shown as.<br>
+ * A number literal is {@code -?digits(.digits)?(e[+-]?digits)?}, optionally followed by {@code +<literal>i} for the
+ * imaginary part, i.e. everything {@link NumberFormatter} produces. The screen is scanned incrementally:
+ * if it only had characters appended since the last check, only the new characters are read.
+ */
+public class GoalMatcher {
+    /**
+     * The tolerance used if it was not set, equal to the tolerance used to show a number as an integer
+     */
+    public static final double DEFAULT_TOLERANCE = NumberFormatter.INTEGER_TOLERANCE;
+
+    /**
+     * The powers of ten that are exactly representable as a {@code double}
+     */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /**
+     * Expecting the first character of a number: a minus or a digit
+     */
+    private static final byte START = 0;
+
+    /**
+     * After a minus, expecting a digit
+     */
+    private static final byte SIGN = 1;
+
+    /**
+     * In the integer part of a number
+     */
+    private static final byte INTEGER = 2;
+
+    /**
+     * After a decimal point, expecting a digit
+     */
+    private static final byte POINT = 3;
+
+    /**
+     * In the fractional part of a number
+     */
+    private static final byte FRACTION = 4;
+
+    /**
+     * After an {@code e}, expecting the sign of the exponent or a digit
+     */
+    private static final byte EXPONENT = 5;
+
+    /**
+     * After the sign of the exponent, expecting a digit
+     */
+    private static final byte EXPONENT_SIGN = 6;
+
+    /**
+     * In the digits of the exponent
+     */
+    private static final byte EXPONENT_DIGITS = 7;
+
+    /**
+     * After the {@code i} of the imaginary part, expecting the end
+     */
+    private static final byte END = 8;
+
+    /**
+     * The screen is not a number literal
+     */
+    private static final byte INVALID = 9;
+
+    /**
+     * The largest absolute difference between the real and imaginary parts of the screen and the goal that still matches
+     */
+    protected double tolerance = DEFAULT_TOLERANCE;
+
+    /**
+     * The goal of the current round, or {@code null} if there is none
+     */
+    protected @Nullable Complex goal;
+
+    /**
+     * The string the goal is shown as
+     */
+    protected String goal_text = "";
+
+    /**
+     * The screen that was scanned last
+     */
+    private String text = "";
+
+    /**
+     * The amount of characters of {@link GoalMatcher#text} that were scanned
+     */
+    private int scanned = 0;
+
+    /**
+     * The part of the literal the scanner is in
+     */
+    private byte phase = START;
+
+    /**
+     * Whether the current number is negative
+     */
+    private boolean negative;
+
+    /**
+     * The significant digits of the current number
+     */
+    private long digits;
+
+    /**
+     * The power of ten the digits are multiplied by, not counting the exponent
+     */
+    private int scale;
+
+    /**
+     * Whether the exponent of the current number is negative
+     */
+    private boolean exponent_negative;
+
+    /**
+     * The exponent of the current number
+     */
+    private int exponent;
+
+    /**
+     * Whether the current number is the imaginary part
+     */
+    private boolean imaginary;
+
+    /**
+     * The real part, once the imaginary part started
+     */
+    private double real;
+
+    /**
+     * Sets the goal of the current round
+     * @param goal the goal
+     * @param goal_text the string the goal is shown as, a screen equal to it always matches
+     */
+    public void setGoal(Complex goal, String goal_text) {
+        this.goal = goal;
+        this.goal_text = goal_text;
+    }
+
+    /**
+     * Sets the tolerance to use when comparing the screen to the goal
+     * @param tolerance the largest absolute difference between the real and imaginary parts that still matches
+     */
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Returns the tolerance used when comparing the screen to the goal
+     * @return the largest absolute difference between the real and imaginary parts that still matches
+     */
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * Returns whether the screen shows the goal
+     * @param screen the text on the screen
+     * @return whether the screen is a number within the tolerance of the goal, or the goal's string
+     */
+    public boolean matches(String screen) {
+        if (goal == null) return false;
+        if (screen.equals(goal_text)) return true;
+        if (!screen.startsWith(text)) reset();
+        text = screen;
+        for (; scanned < screen.length() && phase != INVALID; scanned++) read(screen.charAt(scanned));
+        if (phase == END) return Math.abs(real - goal.real()) <= tolerance && Math.abs(value() - goal.imag()) <= tolerance;
+        if (imaginary || (phase != INTEGER && phase != FRACTION && phase != EXPONENT_DIGITS)) return false;
+        return Math.abs(value() - goal.real()) <= tolerance && Math.abs(goal.imag()) <= tolerance;
+    }
+
+    /**
+     * Forgets the scanned screen, to scan a new one from the start
+     */
+    private void reset() {
+        text = "";
+        scanned = 0;
+        phase = START;
+        imaginary = false;
+        real = 0;
+        startNumber();
+    }
+
+    /**
+     * Clears the current number, before scanning the real or the imaginary part
+     */
+    private void startNumber() {
+        negative = false;
+        digits = 0;
+        scale = 0;
+        exponent_negative = false;
+        exponent = 0;
+    }
+
+    /**
+     * Advances the scanner by one character
+     * @param c the character
+     */
+    private void read(char c) {
+        boolean digit = c >= '0' && c <= '9';
+        phase = switch (phase) {
+            case START -> {
+                negative = c == '-';
+                yield negative ? SIGN : digit ? digit(c, INTEGER) : INVALID;
+            }
+            case SIGN -> digit ? digit(c, INTEGER) : INVALID;
+            case INTEGER -> digit ? digit(c, INTEGER) : c == '.' ? POINT : c == 'e' ? EXPONENT : suffix(c);
+            case POINT, FRACTION -> digit ? digit(c, FRACTION) : phase == FRACTION && c == 'e' ? EXPONENT : phase == FRACTION ? suffix(c) : INVALID;
+            case EXPONENT -> c == '-' || c == '+' ? exponentSign(c == '-') : digit ? exponentDigit(c) : INVALID;
+            case EXPONENT_SIGN, EXPONENT_DIGITS -> digit ? exponentDigit(c) : phase == EXPONENT_DIGITS ? suffix(c) : INVALID;
+            default -> INVALID;
+        };
+    }
+
+    /**
+     * Adds a digit to the current number
+     * @param c the digit
+     * @param phase the phase the digit is in, {@link GoalMatcher#INTEGER} or {@link GoalMatcher#FRACTION}
+     * @return the phase
+     */
+    private byte digit(char c, byte phase) {
+        if (digits < Long.MAX_VALUE / 10 - 9) {
+            digits = digits * 10 + (c - '0');
+            if (phase == FRACTION) scale--;
+        } else if (phase == INTEGER) scale++;
+        return phase;
+    }
+
+    /**
+     * Reads the sign of the exponent
+     * @param minus whether the exponent is negative
+     * @return {@link GoalMatcher#EXPONENT_SIGN}
+     */
+    private byte exponentSign(boolean minus) {
+        exponent_negative = minus;
+        return EXPONENT_SIGN;
+    }
+
+    /**
+     * Adds a digit to the exponent
+     * @param c the digit
+     * @return {@link GoalMatcher#EXPONENT_DIGITS}
+     */
+    private byte exponentDigit(char c) {
+        if (exponent < 10000) exponent = exponent * 10 + (c - '0');
+        return EXPONENT_DIGITS;
+    }
+
+    /**
+     * Reads a character after a complete number: {@code +} starts the imaginary part, and {@code i} ends it
+     * @param c the character
+     * @return the next phase
+     */
+    private byte suffix(char c) {
+        if (c == '+' && !imaginary) {
+            real = value();
+            imaginary = true;
+            startNumber();
+            return START;
+        }
+        return c == 'i' && imaginary ? END : INVALID;
+    }
+
+    /**
+     * Returns the value of the current number
+     * @return the value, which may differ from the exact value by a few units in the last place
+     */
+    private double value() {
+        int power = scale + (exponent_negative ? -exponent : exponent);
+        double value = digits;
+        if (power >= 0) value = power < POWERS_OF_TEN.length ? value * POWERS_OF_TEN[power] : value * Math.pow(10, power);
+        else value = -power < POWERS_OF_TEN.length ? value / POWERS_OF_TEN[-power] : value / Math.pow(10, -power);
+        return negative ? -value : value;
+    }
+}
@@ -0,0 +1,130 @@
+package com.calcgame.main;
+
+import com.calcgame.main.buttons.CalculateButton;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps a string parsed while it is edited, reusing the work done for the unchanged beginning of the string.<br>
+ * The state of the {@link FormulaParser} is saved before every token. When the string changes, every state that depends
+ * on a changed character is dropped, and parsing continues from the last remaining one. So appending a character
+ * or deleting the last one only reparses the last token, and everything after it.
+ * @see GameState#getScreenFormula()
+ */
+public class IncrementalParser {
+    /**
+     * The string that is currently parsed
+     */
+    protected String text = "";
+
+    /**
+     * The saved states of the parser before every token of {@link IncrementalParser#text} that was read successfully,
+     * in order. The first state is the state before the first token
+     */
+    protected final List<FormulaParser.State> states = new ArrayList<>();
+
+    /**
+     * The exception thrown when reading a token, or {@code null} if all tokens were read successfully
+     */
+    protected @Nullable Formula.InvalidFormulaException error;
+
+    /**
+     * The largest index of a character {@link IncrementalParser#error} depends on
+     */
+    protected int error_examined;
+
+    /**
+     * The formula parsed from {@link IncrementalParser#text}, or {@code null} if it was not computed yet or the text is invalid
+     */
+    protected @Nullable Formula formula;
+
+    /**
+     * The value of {@link CalculateButton#getTablesVersion()} when the saved states were created
+     */
+    protected int tables_version;
+
+    /**
+     * Constructs a parser for the empty string
+     */
+    public IncrementalParser() {
+        reset();
+    }
+
+    /**
+     * Drops all saved states, so the next update parses the whole string
+     */
+    protected void reset() {
+        text = "";
+        states.clear();
+        states.add(new FormulaParser("").save(0));
+        error = null;
+        formula = null;
+        tables_version = CalculateButton.getTablesVersion();
+    }
+
+    /**
+     * Changes the parsed string. Only the tokens that depend on changed characters are parsed again.
+     * If an operation or function was added since the last update, the whole string is parsed again.
+     * @param s the new string
+     */
+    public void update(String s) {
+        if (s.equals(text) && tables_version == CalculateButton.getTablesVersion()) return;
+        if (tables_version != CalculateButton.getTablesVersion()) reset();
+        int common = commonPrefix(text, s);
+        while (states.getLast().examined() >= common) states.removeLast();
+        text = s;
+        formula = null;
+        if (error != null && error_examined < common) return;
+        error = null;
+        FormulaParser.State last = states.getLast();
+        FormulaParser parser = new FormulaParser(s, last);
+        int i = last.pos();
+        try {
+            while (i < s.length()) {
+                i = parser.readToken(i);
+                states.add(parser.save(i));
+            }
+        } catch (Formula.InvalidFormulaException e) {
+            error = e;
+            error_examined = parser.examined;
+        }
+    }
+
+    /**
+     * Returns the length of the longest common prefix of two strings.
+     * Appending to and deleting from the end are checked first, as almost every edit of the screen is one of them.
+     * @param a the first string
+     * @param b the second string
+     * @return the amount of characters at the start of the strings that are equal
+     */
+    protected static int commonPrefix(String a, String b) {
+        if (a.length() <= b.length() && b.startsWith(a)) return a.length();
+        if (b.length() < a.length() && a.startsWith(b)) return b.length();
+        int common = 0;
+        int max = Math.min(a.length(), b.length());
+        while (common < max && a.charAt(common) == b.charAt(common)) common++;
+        return common;
+    }
+
+    /**
+     * Returns the formula parsed from the current string
+     * @return the parsed formula
+     * @throws Formula.InvalidFormulaException if the current string is not a valid mathematical expression
+     */
+    public Formula getFormula() throws Formula.InvalidFormulaException {
+        update(text);
+        if (error != null) throw error;
+        if (formula == null) formula = new FormulaParser(text, states.getLast()).finish();
+        return formula;
+    }
+
+    /**
+     * Returns the string that is currently parsed
+     * @return the current string
+     */
+    public String getText() {
+        return text;
+    }
+}
@@ -0,0 +1,163 @@
+package com.calcgame.main;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BinaryOperator;
+import java.util.function.UnaryOperator;
+
+/**
+ * Java implementations of Python expressions commonly used as operations and functions in {@code config.json}.<br>
+ * When a mod defines an operation or function with one of these expressions, the Java implementation is used instead
+ * of evaluating the expression in a Python interpreter. Each implementation gives the same results as Jython,
+ * except that errors are thrown as {@link ArithmeticException}s instead of Python exceptions.
+ * Whitespace in the expressions is ignored, any other expression is evaluated by Jython.<br>
+ * Most of them also have an exact implementation on {@link Rational}s, used by {@link Formula#calcExact()}.
+ */
+public class Intrinsics {
+    /**
+     * The known operations, keyed by their expression without whitespace
+     */
+    private static final Map<String, BinaryOperator<Complex>> OPERATIONS = Map.of(
+            "a+b", Complex::add,
+            "a-b", Complex::sub,
+            "a*b", Complex::mul,
+            "a/b", Complex::div,
+            "a**b", Complex::pow,
+            "a%b", Complex::mod,
+            "a+b/10**len(str(int(b.real)))", Intrinsics::decimalPoint
+    );
+
+    /**
+     * The exact implementations of the known operations, keyed by their expression without whitespace.
+     * They return {@code null} if the result is not rational
+     */
+    private static final Map<String, BinaryOperator<Rational>> EXACT_OPERATIONS = Map.of(
+            "a+b", Rational::add,
+            "a-b", Rational::sub,
+            "a*b", Rational::mul,
+            "a/b", Rational::div,
+            "a**b", Rational::pow,
+            "a%b", Rational::mod,
+            "a+b/10**len(str(int(b.real)))", Intrinsics::decimalPoint
+    );
+
+    /**
+     * The known functions, keyed by their expression without whitespace
+     */
+    private static final Map<String, UnaryOperator<Complex>> FUNCTIONS = Map.of(
+            "abs(x)", Complex::abs
+    );
+
+    /**
+     * The expression without whitespace of every known operation, keyed by it's implementation,
+     * so {@link Intrinsics#isIntrinsic(Operation)} is a lookup by identity and does not normalize the code on every call
+     */
+    private static final Map<BinaryOperator<Complex>, String> OPERATION_CODES = new IdentityHashMap<>();
+
+    /**
+     * The implementations of the known functions, compared by identity
+     */
+    private static final Set<UnaryOperator<Complex>> FUNCTION_IMPLEMENTATIONS = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    static {
+        OPERATIONS.forEach((code, f) -> OPERATION_CODES.put(f, code));
+        FUNCTION_IMPLEMENTATIONS.addAll(FUNCTIONS.values());
+    }
+
+    /**
+     * Returns the Java implementation of an operation defined by the specified Python code
+     * @param code the code of the operation, an expression of {@code a} and {@code b}
+     * @return the implementation, or {@code null} if the code is not a known expression
+     */
+    public static @Nullable BinaryOperator<Complex> getOperation(String code) {
+        return OPERATIONS.get(normalize(code));
+    }
+
+    /**
+     * Returns the Java implementation of a function defined by the specified Python code
+     * @param code the code of the function, an expression of {@code x}
+     * @return the implementation, or {@code null} if the code is not a known expression
+     */
+    public static @Nullable UnaryOperator<Complex> getFunction(String code) {
+        return FUNCTIONS.get(normalize(code));
+    }
+
+    /**
+     * Returns whether the operation is evaluated by a Java implementation from this class
+     * @param op the operation
+     * @return whether the operation is one of the known ones
+     */
+    public static boolean isIntrinsic(Operation op) {
+        return OPERATION_CODES.containsKey(op.f());
+    }
+
+    /**
+     * Returns whether the function is a Java implementation from this class
+     * @param f the function
+     * @return whether the function is one of the known ones
+     */
+    public static boolean isIntrinsic(UnaryOperator<Complex> f) {
+        return FUNCTION_IMPLEMENTATIONS.contains(f);
+    }
+
+    /**
+     * Returns the exact implementation of an operation
+     * @param op the operation
+     * @return the implementation, which returns {@code null} if the result is not rational,
+     * or {@code null} if the operation is not evaluated by a Java implementation from this class
+     */
+    public static @Nullable BinaryOperator<Rational> getExactOperation(Operation op) {
+        String code = OPERATION_CODES.get(op.f());
+        return code == null ? null : EXACT_OPERATIONS.get(code);
+    }
+
+    /**
+     * Returns the exact implementation of a function
+     * @param f the function
+     * @return the implementation, or {@code null} if the function is not a known one
+     */
+    public static @Nullable UnaryOperator<Rational> getExactFunction(UnaryOperator<Complex> f) {
+        return f == FUNCTIONS.get("abs(x)") ? Rational::abs : null;
+    }
+
+    /**
+     * Removes all whitespace from the code, only used when an operation or function is loaded
+     * @param code the code to normalize
+     * @return the code without whitespace
+     */
+    private static String normalize(String code) {
+        return code.replaceAll("\\s", "");
+    }
+
+    /**
+     * The decimal point operation of the base mod, {@code a + b/10**len(str(int(b.real)))}
+     * @param a the integral part
+     * @param b the digits after the decimal point
+     * @return {@code a} with {@code b} appended after the decimal point
+     * @throws ArithmeticException if the real part of {@code b} is infinite or {@code NaN}
+     */
+    private static Complex decimalPoint(Complex a, Complex b) {
+        if (Double.isNaN(b.real())) throw new ArithmeticException("cannot convert float NaN to integer");
+        if (Double.isInfinite(b.real())) throw new ArithmeticException("cannot convert float infinity to integer");
+        int digits = Math.abs(b.real()) < 1e18 ? Long.toString((long) b.real()).length()
+                : new BigDecimal(b.real()).toBigInteger().toString().length();
+        return a.add(b.div(Complex.of(Double.parseDouble("1e" + digits))));
+    }
+
+    /**
+     * The exact version of {@link Intrinsics#decimalPoint(Complex, Complex)}
+     * @param a the integral part
+     * @param b the digits after the decimal point
+     * @return {@code a} with {@code b} appended after the decimal point
+     */
+    private static Rational decimalPoint(Rational a, Rational b) {
+        int digits = b.truncate().toString().length();
+        return a.add(b.div(Rational.of(BigInteger.TEN.pow(digits), BigInteger.ONE)));
+    }
+}
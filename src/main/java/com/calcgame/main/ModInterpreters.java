@@ -0,0 +1,160 @@
+package com.calcgame.main;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.python.core.PyFileWriter;
+import org.python.core.PyStringMap;
+import org.python.core.PySystemState;
+import org.python.util.PythonInterpreter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * The Python interpreters that mod scripts are executed in.<br>
+ * Every mod has a single {@link PySystemState} (it's {@code sys} module and the modules it's scripts imported),
+ * created the first time one of it's scripts is loaded. Every button, operation and function of the mod gets an interpreter
+ * with it's own empty namespace on top of that state, so scripts can not see each other's variables, but the
+ * interpreter state is only created and kept once per mod, not once per script.<br>
+ * The interpreters must not be closed, as that would clean up the state shared by the whole mod.
+ * All states are closed by {@link ModInterpreters#closeAll()} when the game exits.<br>
+ * As {@code sys.stdout} is shared too, the output of an interpreter must not be set with {@link PythonInterpreter#setOut(Writer)}.
+ * Instead, a script's output is set for the current thread while it runs, see {@link ModInterpreters#withOutput(Writer, Supplier)}.
+ * Output of code that runs without one, e.g. operations in formulas, is logged by the mod's logger ({@code Mod/<mod_id>}).
+ */
+public final class ModInterpreters {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    /**
+     * The interpreter state of every mod that has loaded a script, keyed by the mod's id
+     */
+    private static final Map<String, PySystemState> states = new ConcurrentHashMap<>();
+
+    /**
+     * The output of the script running on every thread, or {@code null} if the thread is not running a script with an output
+     */
+    private static final ThreadLocal<Writer> outputs = new ThreadLocal<>();
+
+    /**
+     * A private constructor to prevent accidental instantiations of this class
+     */
+    private ModInterpreters() {}
+
+    /**
+     * Creates an interpreter for a script of the specified mod, with an empty namespace and the mod's shared state
+     * @param mod_id the id of the mod that supplied the script
+     * @return a new interpreter, which should not be closed
+     */
+    public static PythonInterpreter newInterpreter(String mod_id) {
+        return new PythonInterpreter(new PyStringMap(), getSystemState(mod_id));
+    }
+
+    /**
+     * Returns the interpreter state shared by all scripts of the specified mod, creating it if it does not exist yet
+     * @param mod_id the id of the mod
+     * @return the mod's interpreter state
+     */
+    public static PySystemState getSystemState(String mod_id) {
+        return states.computeIfAbsent(mod_id, (ignored) -> {
+            LOGGER.debug("Creating Python interpreter state for mod '{}'", mod_id);
+            PySystemState state = new PySystemState();
+            state.stdout = new PyFileWriter(new ScopedOutput(LogManager.getLogger("Mod/%s".formatted(mod_id))));
+            return state;
+        });
+    }
+
+    /**
+     * Runs a script with it's output set for the current thread, so everything it prints is written to the output,
+     * even though {@code sys.stdout} is shared by the whole mod
+     * @param out the output of the script, see {@link Utils#writerFromLogger(Logger)}
+     * @param body the code that runs the script
+     * @return the value returned by the body
+     * @param <T> the type of the value
+     */
+    public static <T> T withOutput(Writer out, Supplier<T> body) {
+        Writer previous = outputs.get();
+        outputs.set(out);
+        try {
+            return body.get();
+        } finally {
+            if (previous == null) outputs.remove();
+            else outputs.set(previous);
+        }
+    }
+
+    /**
+     * Runs a script with it's output set for the current thread, see {@link ModInterpreters#withOutput(Writer, Supplier)}
+     * @param out the output of the script
+     * @param body the code that runs the script
+     */
+    public static void withOutput(Writer out, Runnable body) {
+        withOutput(out, () -> {
+            body.run();
+            return null;
+        });
+    }
+
+    /**
+     * Returns the amount of mods that have an interpreter state
+     * @return the amount of interpreter states
+     */
+    public static int countStates() {
+        return states.size();
+    }
+
+    /**
+     * Closes the interpreter state of every mod, after which the interpreters created before may not be used
+     */
+    public static void closeAll() {
+        for (Map.Entry<String, PySystemState> entry : states.entrySet()) {
+            LOGGER.debug("Closing Python interpreter state for mod '{}'", entry.getKey());
+            entry.getValue().close();
+        }
+        states.clear();
+    }
+
+    /**
+     * The {@code sys.stdout} of a mod, which writes to the output of the script running on the current thread,
+     * or to the mod's logger if there is none
+     */
+    private static class ScopedOutput extends Writer {
+        /**
+         * The output of every thread that is not running a script with an output, as the writers buffer a line at a time
+         */
+        private final ThreadLocal<Writer> fallback;
+
+        /**
+         * Constructs the output of a mod
+         * @param logger the logger of the mod
+         */
+        ScopedOutput(Logger logger) {
+            this.fallback = ThreadLocal.withInitial(() -> Utils.writerFromLogger(logger));
+        }
+
+        /**
+         * Returns the writer of the current thread
+         * @return the output of the running script, or the mod's logger
+         */
+        private Writer target() {
+            Writer out = outputs.get();
+            return out != null ? out : fallback.get();
+        }
+
+        @Override
+        public void write(char @NotNull [] cbuf, int off, int len) throws IOException {
+            target().write(cbuf, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            target().flush();
+        }
+
+        @Override
+        public void close() {}
+    }
+}
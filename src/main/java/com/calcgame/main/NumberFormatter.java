@@ -0,0 +1,164 @@
+package com.calcgame.main;
+
+import java.util.Locale;
+
+/**
+ * Formats numbers the way they are shown to the player, without {@link String#format(String, Object...)}.<br>
+ * The output is the same as the format strings {@link GameState#numToString(double)} used before:
+ * {@code %d} for numbers that are close to an integer, {@code %.3f} for other numbers and {@code %.1e} for large ones.
+ * Like {@link java.util.Formatter}, numbers are rounded half up based on their shortest decimal representation
+ * (the one {@link Double#toString(double)} returns), so {@code 1.0005} is shown as {@code 1.001}
+ * even though the nearest {@code double} is slightly less than that.<br>
+ * Digits are appended to a {@link StringBuilder}, and the builder used by {@link NumberFormatter#toString(double)}
+ * is reused by every call on the same thread, so formatting a number only allocates the resulting string.
+ */
+public final class NumberFormatter {
+    /**
+     * Numbers with a larger absolute value are formatted in scientific notation
+     */
+    public static final double SCIENTIFIC_THRESHOLD = 5e10;
+
+    /**
+     * Numbers closer than this to an integer are formatted as that integer
+     */
+    public static final double INTEGER_TOLERANCE = 1e-6;
+
+    /**
+     * Numbers whose scaled digits are closer than this to a rounding tie are formatted using {@link String#format(Locale, String, Object...)},
+     * as the digits are computed using floating point arithmetic, which is not exact enough to decide which way they are rounded
+     */
+    private static final double TIE_TOLERANCE = 1e-9;
+
+    /**
+     * The powers of ten that are exactly representable as a {@code double}
+     */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /**
+     * The builder reused by {@link NumberFormatter#toString(double)} and {@link NumberFormatter#toString(Complex)} on every thread
+     */
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(32));
+
+    private NumberFormatter() {
+    }
+
+    /**
+     * Returns a human-readable string representing a complex number
+     * @param x the number to format
+     * @return the formatted number
+     * @see NumberFormatter#append(StringBuilder, Complex)
+     */
+    public static String toString(Complex x) {
+        StringBuilder out = BUFFER.get();
+        out.setLength(0);
+        append(out, x);
+        return out.toString();
+    }
+
+    /**
+     * Returns a human-readable string representing a real number
+     * @param x the number to format
+     * @return the formatted number
+     * @see NumberFormatter#append(StringBuilder, double)
+     */
+    public static String toString(double x) {
+        StringBuilder out = BUFFER.get();
+        out.setLength(0);
+        append(out, x);
+        return out.toString();
+    }
+
+    /**
+     * Appends a human-readable representation of a complex number: {@code 0}, {@code Inf}, the real part if the imaginary part
+     * is close to zero, and {@code <real>+<imag>i} otherwise
+     * @param out the builder to append to
+     * @param x the number to format
+     * @return the builder
+     */
+    public static StringBuilder append(StringBuilder out, Complex x) {
+        if (x.isZero()) return out.append('0');
+        if (x.equals(Complex.INF)) return out.append("Inf");
+        append(out, x.real());
+        if (Math.abs(x.imag()) < INTEGER_TOLERANCE) return out;
+        out.append('+');
+        return append(out, x.imag()).append('i');
+    }
+
+    /**
+     * Appends a human-readable representation of a real number,
+     * equal to {@code "%.1e"}, {@code "%d"} (of the closest integer) or {@code "%.3f"} formatted with the number
+     * @param out the builder to append to
+     * @param x the number to format
+     * @return the builder
+     */
+    public static StringBuilder append(StringBuilder out, double x) {
+        double abs = Math.abs(x);
+        if (abs > SCIENTIFIC_THRESHOLD) return appendScientific(out, x);
+        long rounded = Math.round(x);
+        if (Math.abs(x - rounded) < INTEGER_TOLERANCE) return out.append(rounded);
+        if (Double.isNaN(x)) return out.append("NaN");
+        // abs is between INTEGER_TOLERANCE and SCIENTIFIC_THRESHOLD, so it is mantissa / 2^shift with a shift between 17 and 72
+        long bits = Double.doubleToRawLongBits(abs);
+        int shift = 1075 - (int) (bits >>> 52);
+        // mantissa * 1000 < 2^63, so it does not overflow
+        long scaled = ((bits & 0xFFFFFFFFFFFFFL) | 0x10000000000000L) * 1000;
+        long thousandths = 0;
+        boolean up = false;
+        if (shift < 64) {
+            thousandths = scaled >>> shift;
+            up = (scaled & ((1L << shift) - 1)) >= 1L << (shift - 1);
+        }
+        // the halfway point is the shortest representation if it is the closest decimal to the number, and is rounded up
+        if (!up) up = (thousandths * 10 + 5) / 1e4 == abs;
+        if (up) thousandths++;
+        if (x < 0) out.append('-');
+        out.append(thousandths / 1000).append('.');
+        long fraction = thousandths % 1000;
+        if (fraction < 100) out.append('0');
+        if (fraction < 10) out.append('0');
+        return out.append(fraction);
+    }
+
+    /**
+     * Appends a number in scientific notation with two significant digits, equal to {@code String.format(Locale.ROOT, "%.1e", x)},
+     * so the decimal separator is always a dot, regardless of the default locale
+     * @param out the builder to append to
+     * @param x the number to format
+     * @return the builder
+     */
+    private static StringBuilder appendScientific(StringBuilder out, double x) {
+        if (Double.isNaN(x)) return out.append("NaN");
+        if (Double.isInfinite(x)) return out.append(x > 0 ? "Infinity" : "-Infinity");
+        double abs = Math.abs(x);
+        int exponent = (int) Math.floor(Math.log10(abs));
+        double scaled = scale(abs, exponent - 1);
+        if (scaled < 10) scaled = scale(abs, --exponent - 1);
+        else if (scaled >= 100) scaled = scale(abs, ++exponent - 1);
+        double fraction = scaled - Math.floor(scaled);
+        if (Math.abs(fraction - .5) < TIE_TOLERANCE) return out.append(String.format(Locale.ROOT, "%.1e", x));
+        int digits = (int) Math.floor(scaled) + (fraction > .5 ? 1 : 0);
+        if (digits == 100) {
+            digits = 10;
+            exponent++;
+        }
+        if (x < 0) out.append('-');
+        out.append(digits / 10).append('.').append(digits % 10).append('e').append(exponent < 0 ? '-' : '+');
+        if (Math.abs(exponent) < 10) out.append('0');
+        return out.append(Math.abs(exponent));
+    }
+
+    /**
+     * Divides a number by a power of ten
+     * @param x the number to divide
+     * @param exponent the exponent of the power of ten
+     * @return {@code x / 10^exponent}, with a small relative error if the power is not exactly representable
+     */
+    private static double scale(double x, int exponent) {
+        if (exponent >= 0 && exponent < POWERS_OF_TEN.length) return x / POWERS_OF_TEN[exponent];
+        if (exponent < 0 && -exponent < POWERS_OF_TEN.length) return x * POWERS_OF_TEN[-exponent];
+        return x / Math.pow(10, exponent);
+    }
+}
@@ -1,13 +1,39 @@
 package com.calcgame.main;
 
-import org.python.core.PyComplex;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
 
 /**
  * Represents an operation used when parsing and evaluating a mathematical expression
  * @param priority the priority of the operation (more means it will be executed first)
  * @param f the function to use to evaluate
+ * @param code the Python code the operation was loaded from, or {@code null} if it was defined in some other way
  */
-public record Operation(int priority, BiFunction<PyComplex, PyComplex, PyComplex> f) {
+public record Operation(int priority, BinaryOperator<Complex> f, @Nullable String code) {
+    /**
+     * Constructs an operation that was not loaded from Python code
+     * @param priority the priority of the operation (more means it will be executed first)
+     * @param f the function to use to evaluate
+     */
+    public Operation(int priority, BinaryOperator<Complex> f) {
+        this(priority, f, null);
+    }
+
+    /**
+     * Returns whether this operation was loaded from the specified Python expression, ignoring whitespace.
+     * Used to recognize the stock operations, e.g. {@code "a ** b"}
+     * @param expression the expression to compare to
+     * @return whether the code of this operation is the expression
+     */
+    public boolean isCode(String expression) {
+        if (code == null) return false;
+        int i = 0, j = 0;
+        while (true) {
+            while (i < code.length() && Character.isWhitespace(code.charAt(i))) i++;
+            while (j < expression.length() && Character.isWhitespace(expression.charAt(j))) j++;
+            if (i == code.length() || j == expression.length()) return i == code.length() && j == expression.length();
+            if (code.charAt(i++) != expression.charAt(j++)) return false;
+        }
+    }
 }
@@ -0,0 +1,446 @@
+package com.calcgame.main;
+
+import com.calcgame.main.buttons.CalculateButton;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.UnaryOperator;
+
+/**
+ * A {@link Formula} that was rewritten into an equivalent one that is cheaper to evaluate.<br>
+ * The following optimizations are applied:
+ * <ul>
+ *     <li>subtrees without variables are evaluated once when optimizing (unless evaluating them throws);</li>
+ *     <li>structurally identical subtrees are merged, so each of them is evaluated only once;</li>
+ *     <li>{@code x^2}, where {@code ^} is the stock {@code a ** b} operation, is evaluated as {@code x*x}.</li>
+ * </ul>
+ * The optimized formula is stored as a list of nodes, where the operands of every node come before it. It is evaluated by computing the nodes in order, without recursion.<br>
+ * Only pure operations and functions (see {@link CalculateButton#isPure(Operation)}) are folded or merged,
+ * as they always return the same result for the same arguments. Every other node is kept and evaluated every time,
+ * so e.g. {@code rand(1)+rand(1)} still calls {@code rand} twice, and mod scripts are not run when optimizing.
+ * @see Formula#optimize()
+ */
+public class OptimizedFormula {
+    /**
+     * The Python code of the stock power operation
+     */
+    public static final String STOCK_POWER = "a ** b";
+
+    /**
+     * The kind of a node that is a constant
+     */
+    static final byte CONSTANT = 0;
+
+    /**
+     * The kind of a node that is a variable
+     */
+    static final byte VARIABLE = 1;
+
+    /**
+     * The kind of a node that applies an operation to two nodes
+     */
+    static final byte OPERATION = 2;
+
+    /**
+     * The kind of a node that applies a function to a node
+     */
+    static final byte FUNCTION = 3;
+
+    /**
+     * The kind of a node that multiplies a node by itself
+     */
+    static final byte SQUARE = 4;
+
+    /**
+     * The formula this object was optimized from
+     */
+    protected final Formula source;
+
+    /**
+     * The amount of operations in the source formula
+     */
+    protected final int operations;
+
+    /**
+     * The kind of every node
+     */
+    protected final byte[] kinds;
+
+    /**
+     * The index of the first operand of every node, or {@code -1} if the node has no operands
+     */
+    protected final int[] first;
+
+    /**
+     * The index of the second operand of every node, or {@code -1} if the node has less than two operands
+     */
+    protected final int[] second;
+
+    /**
+     * The data of every node: the {@link Complex} value of a constant, the name of a variable,
+     * the {@link Operation} of an operation or the function of a function
+     */
+    protected final Object[] data;
+
+    /**
+     * The index of the node that is the result of the formula
+     */
+    protected final int result;
+
+    /**
+     * Constructs an optimized formula, use {@link OptimizedFormula#optimize(Formula)} instead
+     * @param source the formula that was optimized
+     * @param operations the amount of operations in the source formula
+     * @param builder the builder that contains the nodes
+     * @param result the index of the node that is the result of the formula
+     */
+    private OptimizedFormula(Formula source, int operations, Builder builder, int result) {
+        this.source = source;
+        this.operations = operations;
+        this.kinds = Arrays.copyOf(builder.kinds, builder.size);
+        this.first = Arrays.copyOf(builder.first, builder.size);
+        this.second = Arrays.copyOf(builder.second, builder.size);
+        this.data = Arrays.copyOf(builder.data, builder.size);
+        this.result = result;
+    }
+
+    /**
+     * Optimizes the specified formula
+     * @param formula the formula to optimize
+     * @return the optimized formula
+     * @throws Formula.InvalidFormulaException if the formula is invalid
+     */
+    public static OptimizedFormula optimize(Formula formula) throws Formula.InvalidFormulaException {
+        return optimize(formula, null);
+    }
+
+    /**
+     * Optimizes the specified formula, charging the operations and functions evaluated when folding constants to a budget
+     * @param formula the formula to optimize
+     * @param budget the budget to charge folded operations and functions to, or {@code null} to not limit folding
+     * @return the optimized formula
+     * @throws Formula.InvalidFormulaException if the formula is invalid or the budget was exceeded
+     */
+    public static OptimizedFormula optimize(Formula formula, @Nullable EvaluationBudget budget) throws Formula.InvalidFormulaException {
+        Builder builder = new Builder(budget);
+        Formula[] nodes = new Formula[16];
+        boolean[] visited = new boolean[16];
+        int[] ids = new int[16];
+        int depth = 0, count = 0;
+        nodes[depth++] = formula;
+        while (depth > 0) {
+            Formula node = nodes[depth - 1];
+            int id;
+            if (node.constant != null) id = builder.add(CONSTANT, -1, -1, node.constant);
+            else if (node.variable != null) id = builder.add(VARIABLE, -1, -1, node.variable);
+            else if (!visited[depth - 1]) {
+                if ((node.op == null || node.b == null) && node.f == null)
+                    throw new Formula.InvalidFormulaException("Formula does not contain an operation and second operand or unary function");
+                visited[depth - 1] = true;
+                if (depth + 2 > nodes.length) {
+                    nodes = Arrays.copyOf(nodes, nodes.length * 2);
+                    visited = Arrays.copyOf(visited, visited.length * 2);
+                }
+                if (node.op != null && node.b != null) {
+                    visited[depth] = false;
+                    nodes[depth++] = node.b;
+                }
+                visited[depth] = false;
+                nodes[depth++] = node.a;
+                continue;
+            } else if (node.op != null && node.b != null) {
+                count -= 2;
+                id = builder.addOperation(node.op, ids[count], ids[count + 1]);
+            } else {
+                count--;
+                id = builder.add(FUNCTION, ids[count], -1, node.f);
+            }
+            depth--;
+            if (count == ids.length) ids = Arrays.copyOf(ids, count * 2);
+            ids[count++] = id;
+        }
+        return new OptimizedFormula(formula, formula.countOperations(), builder, ids[0]);
+    }
+
+    /**
+     * Evaluates this formula
+     * @return the result of evaluating this formula
+     * @throws Formula.InvalidFormulaException if this formula contains a variable, or an operation is undefined for its operands
+     */
+    public Complex calc() throws Formula.InvalidFormulaException {
+        return calc(Map.of());
+    }
+
+    /**
+     * Evaluates this formula, equivalent to {@link Formula#calc(Map)} on the source formula
+     * @param vars the variables to use
+     * @return the result of evaluating this formula
+     * @throws Formula.InvalidFormulaException if a variable is undefined or an operation is undefined for its operands
+     */
+    public Complex calc(Map<String, Complex> vars) throws Formula.InvalidFormulaException {
+        return calc(vars, null);
+    }
+
+    /**
+     * Evaluates this formula, aborting if evaluating it takes more than the specified budget.
+     * Every node is charged once, so repeated subexpressions are only paid for once, unlike in {@link Formula#calc(Map, EvaluationBudget)}.
+     * @param vars the variables to use
+     * @param budget the budget to charge every operation and function to, or {@code null} to not limit evaluation
+     * @return the result of evaluating this formula
+     * @throws Formula.InvalidFormulaException if a variable is undefined, an operation is undefined for its operands or the budget was exceeded
+     */
+    public Complex calc(Map<String, Complex> vars, @Nullable EvaluationBudget budget) throws Formula.InvalidFormulaException {
+        Complex[] values = new Complex[result + 1];
+        for (int i = 0; i <= result; i++) {
+            try {
+                values[i] = switch (kinds[i]) {
+                    case CONSTANT -> (Complex) data[i];
+                    case VARIABLE -> Formula.getVariable(vars, (String) data[i]);
+                    default -> {
+                        if (budget != null) budget.charge(getCost(kinds[i], data[i]));
+                        yield compute(kinds[i], data[i], values[first[i]], second[i] == -1 ? null : values[second[i]]);
+                    }
+                };
+            } catch (ArithmeticException e) {
+                throw new Formula.InvalidFormulaException(e.getMessage());
+            }
+        }
+        return values[result];
+    }
+
+    /**
+     * Evaluates this formula, and returns the result together with the amount of operations and the string representation of the source formula
+     * @param vars the variables to use
+     * @param state the state to use to stringify numbers, if {@code null} uses {@link Complex#toString()}
+     * @return the value, the amount of operations and the string representation of the source formula
+     * @throws Formula.InvalidFormulaException if a variable is undefined or an operation is undefined for its operands
+     */
+    public Formula.Evaluation evaluate(Map<String, Complex> vars, @Nullable GameState state) throws Formula.InvalidFormulaException {
+        return evaluate(vars, state, null);
+    }
+
+    /**
+     * Evaluates this formula, aborting if evaluating it takes more than the specified budget,
+     * and returns the result together with the amount of operations and the string representation of the source formula
+     * @param vars the variables to use
+     * @param state the state to use to stringify numbers, if {@code null} uses {@link Complex#toString()}
+     * @param budget the budget to charge every operation and function to, or {@code null} to not limit evaluation
+     * @return the value, the amount of operations and the string representation of the source formula
+     * @throws Formula.InvalidFormulaException if a variable is undefined, an operation is undefined for its operands or the budget was exceeded
+     */
+    public Formula.Evaluation evaluate(Map<String, Complex> vars, @Nullable GameState state, @Nullable EvaluationBudget budget) throws Formula.InvalidFormulaException {
+        return new Formula.Evaluation(calc(vars, budget), operations, source.toString(state));
+    }
+
+    /**
+     * Returns the cost of evaluating a node that is not a constant or variable
+     * @param kind the kind of the node
+     * @param data the data of the node
+     * @return the cost of the operation or function of the node
+     * @see CalculateButton#getCost(Operation)
+     */
+    @SuppressWarnings("unchecked")
+    private static int getCost(byte kind, Object data) {
+        return switch (kind) {
+            case OPERATION -> CalculateButton.getCost((Operation) data);
+            case FUNCTION -> CalculateButton.getCost((UnaryOperator<Complex>) data);
+            default -> CalculateButton.DEFAULT_INTRINSIC_COST;
+        };
+    }
+
+    /**
+     * Computes the value of a node that is not a constant or variable
+     * @param kind the kind of the node
+     * @param data the data of the node
+     * @param a the value of the first operand
+     * @param b the value of the second operand, or {@code null} if the node has one operand
+     * @return the value of the node
+     */
+    @SuppressWarnings("unchecked")
+    private static Complex compute(byte kind, Object data, Complex a, @Nullable Complex b) {
+        return switch (kind) {
+            case OPERATION -> ((Operation) data).f().apply(a, b);
+            case FUNCTION -> ((UnaryOperator<Complex>) data).apply(a);
+            case SQUARE -> a.mul(a);
+            default -> throw new IllegalStateException("Unknown node kind: " + kind);
+        };
+    }
+
+    /**
+     * Returns the amount of operations in the source formula, which does not change when optimizing
+     * @return the amount of operations
+     */
+    public int countOperations() {
+        return operations;
+    }
+
+    /**
+     * Returns the amount of nodes left after optimizing, each of them is evaluated once
+     * @return the amount of nodes
+     */
+    public int countNodes() {
+        return kinds.length;
+    }
+
+    /**
+     * Returns the formula this object was optimized from
+     * @return the source formula
+     */
+    public Formula getSource() {
+        return source;
+    }
+
+    /**
+     * Returns a human-readable string representation of the source formula
+     * @return a human-readable string representation of the source formula
+     */
+    @Override
+    public String toString() {
+        return source.toString();
+    }
+
+    /**
+     * Collects the nodes of an optimized formula, merging identical ones and folding constants
+     */
+    private static class Builder {
+        /**
+         * The kind of every node
+         */
+        byte[] kinds = new byte[16];
+
+        /**
+         * The index of the first operand of every node
+         */
+        int[] first = new int[16];
+
+        /**
+         * The index of the second operand of every node
+         */
+        int[] second = new int[16];
+
+        /**
+         * The data of every node
+         */
+        Object[] data = new Object[16];
+
+        /**
+         * The amount of nodes
+         */
+        int size = 0;
+
+        /**
+         * The index of every node, used to find identical nodes
+         */
+        final Map<Key, Integer> index = new HashMap<>();
+
+        /**
+         * The budget to charge folded operations and functions to, or {@code null}
+         */
+        final @Nullable EvaluationBudget budget;
+
+        /**
+         * Constructs an empty builder
+         * @param budget the budget to charge folded operations and functions to, or {@code null}
+         */
+        Builder(@Nullable EvaluationBudget budget) {
+            this.budget = budget;
+        }
+
+        /**
+         * Adds an operation node, rewriting it into a cheaper one if possible
+         * @param op the operation
+         * @param a the index of the first operand
+         * @param b the index of the second operand
+         * @return the index of the node
+         * @throws Formula.InvalidFormulaException if folding the node exceeded the budget
+         */
+        int addOperation(Operation op, int a, int b) throws Formula.InvalidFormulaException {
+            if (op.isCode(STOCK_POWER) && kinds[b] == CONSTANT && data[b].equals(Complex.of(2)))
+                return add(SQUARE, a, -1, null);
+            return add(OPERATION, a, b, op);
+        }
+
+        /**
+         * Adds a node, or returns the index of an identical node if there is one and the node is pure.
+         * If the node is pure and all of it's operands are constants, it is evaluated and added as a constant instead.
+         * @param kind the kind of the node
+         * @param a the index of the first operand, or {@code -1}
+         * @param b the index of the second operand, or {@code -1}
+         * @param value the data of the node
+         * @return the index of the node
+         * @throws Formula.InvalidFormulaException if folding the node exceeded the budget
+         */
+        int add(byte kind, int a, int b, @Nullable Object value) throws Formula.InvalidFormulaException {
+            boolean pure = isPure(kind, value);
+            if (pure && kind > VARIABLE && kinds[a] == CONSTANT && (b == -1 || kinds[b] == CONSTANT)) {
+                Complex folded = null;
+                try {
+                    folded = compute(kind, value, (Complex) data[a], b == -1 ? null : (Complex) data[b]);
+                } catch (RuntimeException ignored) {
+                    // left to fail when the formula is evaluated, where it is charged
+                }
+                if (folded != null) {
+                    if (budget != null) budget.charge(getCost(kind, value));
+                    return add(CONSTANT, -1, -1, folded);
+                }
+            }
+            Key key = pure ? new Key(kind, a, b, value) : null;
+            if (key != null) {
+                Integer existing = index.get(key);
+                if (existing != null) return existing;
+            }
+            if (size == kinds.length) {
+                kinds = Arrays.copyOf(kinds, size * 2);
+                first = Arrays.copyOf(first, size * 2);
+                second = Arrays.copyOf(second, size * 2);
+                data = Arrays.copyOf(data, size * 2);
+            }
+            kinds[size] = kind;
+            first[size] = a;
+            second[size] = b;
+            data[size] = value;
+            if (key != null) index.put(key, size);
+            return size++;
+        }
+
+        /**
+         * Returns whether a node always has the same value for the same operands, so it may be folded or merged
+         * @param kind the kind of the node
+         * @param value the data of the node
+         * @return whether the node is pure
+         */
+        @SuppressWarnings("unchecked")
+        private static boolean isPure(byte kind, @Nullable Object value) {
+            return switch (kind) {
+                case OPERATION -> CalculateButton.isPure((Operation) value);
+                case FUNCTION -> CalculateButton.isPure((UnaryOperator<Complex>) value);
+                default -> true;
+            };
+        }
+    }
+
+    /**
+     * Identifies a node by its kind, operands and data, so identical nodes have equal keys.
+     * Operations and functions are compared by identity
+     * @param kind the kind of the node
+     * @param a the index of the first operand, or {@code -1}
+     * @param b the index of the second operand, or {@code -1}
+     * @param data the data of the node
+     */
+    private record Key(byte kind, int a, int b, @Nullable Object data) {
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key key)) return false;
+            if (kind != key.kind || a != key.a || b != key.b) return false;
+            return kind == CONSTANT || kind == VARIABLE ? Objects.equals(data, key.data) : data == key.data;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(kind, a, b, kind == CONSTANT || kind == VARIABLE ? data : System.identityHashCode(data));
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package com.calcgame.main;
+
+import com.calcgame.main.buttons.CalculateButton;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A {@link Formula} that is evaluated on several threads, for formulas that contain expensive operations or functions.<br>
+ * The two operands of an operation are independent, so when both of them are expensive they can be evaluated at the same time.
+ * When preparing, the estimated cost (see {@link Formula#estimateCost()}) of every subexpression is computed once.
+ * When evaluating, the cheaper operand of an operation is forked onto a {@link ForkJoinPool} if both operands cost
+ * at least the threshold, and the other operand is evaluated by the current thread. Subexpressions cheaper than
+ * the threshold are evaluated using {@link Formula#calc(Map)}, as splitting them would cost more than it saves.<br>
+ * Evaluating an operand on another thread requires every operation and function in it to be pure and thread-safe
+ * (see {@link CalculateButton#isPure(Operation)} and {@link CalculateButton#isThreadSafe(Operation)}),
+ * otherwise the operand is evaluated by the current thread. The root and every other subexpression that is not forked
+ * are evaluated by the thread that invoked {@link ParallelFormula#calc(Map, EvaluationBudget)}, so mod scripts that are not
+ * thread-safe keep running on the game thread, with it's Jython thread state. Only the cheaper operand is forked, so the amount of
+ * nested forks grows with the logarithm of the cost, and the walk itself does not use recursion.
+ * @see Formula#parallelize(long)
+ */
+public class ParallelFormula {
+    /**
+     * The formula this object was prepared from
+     */
+    protected final Formula source;
+
+    /**
+     * The smallest cost of a subexpression that is worth evaluating on another thread
+     */
+    protected final long threshold;
+
+    /**
+     * The pool that forked subexpressions are evaluated in
+     */
+    protected final ForkJoinPool pool;
+
+    /**
+     * The estimated cost and safety of every subexpression that costs at least the threshold, and of their operands
+     */
+    protected final Map<Formula, Split> splits;
+
+    /**
+     * Constructs a parallel formula, use {@link ParallelFormula#prepare(Formula, long, ForkJoinPool)} instead
+     * @param source the formula that was prepared
+     * @param threshold the smallest cost of a subexpression that is worth evaluating on another thread
+     * @param pool the pool to evaluate forked subexpressions in
+     * @param splits the cost and safety of the subexpressions
+     */
+    private ParallelFormula(Formula source, long threshold, ForkJoinPool pool, Map<Formula, Split> splits) {
+        this.source = source;
+        this.threshold = threshold;
+        this.pool = pool;
+        this.splits = splits;
+    }
+
+    /**
+     * Prepares the specified formula for evaluating it in parallel
+     * @param formula the formula to prepare
+     * @param threshold the smallest cost of a subexpression that is worth evaluating on another thread
+     * @param pool the pool to evaluate forked subexpressions in
+     * @return the prepared formula
+     * @throws Formula.InvalidFormulaException if the formula is invalid
+     */
+    public static ParallelFormula prepare(Formula formula, long threshold, ForkJoinPool pool) throws Formula.InvalidFormulaException {
+        formula.countOperations();
+        Map<Formula, Split> splits = new IdentityHashMap<>();
+        Formula[] nodes = new Formula[16];
+        boolean[] visited = new boolean[16];
+        Split[] values = new Split[16];
+        int depth = 0, count = 0;
+        nodes[depth++] = formula;
+        while (depth > 0) {
+            Formula node = nodes[depth - 1];
+            Split split;
+            if (node.operations == 0 || node.value != null) split = new Split(0, true);
+            else if (!visited[depth - 1]) {
+                visited[depth - 1] = true;
+                if (depth + 2 > nodes.length) {
+                    nodes = Arrays.copyOf(nodes, nodes.length * 2);
+                    visited = Arrays.copyOf(visited, visited.length * 2);
+                }
+                if (node.op != null && node.b != null) {
+                    visited[depth] = false;
+                    nodes[depth++] = node.b;
+                }
+                visited[depth] = false;
+                nodes[depth++] = node.a;
+                continue;
+            } else if (node.op != null && node.b != null) {
+                count -= 2;
+                Split a = values[count], b = values[count + 1];
+                split = new Split(a.cost + b.cost + CalculateButton.getCost(node.op),
+                        a.safe && b.safe && CalculateButton.isPure(node.op) && CalculateButton.isThreadSafe(node.op));
+                if (split.cost >= threshold) {
+                    splits.put(node.a, a);
+                    splits.put(node.b, b);
+                }
+            } else {
+                count--;
+                Split a = values[count];
+                split = new Split(a.cost + CalculateButton.getCost(node.f),
+                        a.safe && CalculateButton.isPure(node.f) && CalculateButton.isThreadSafe(node.f));
+                if (split.cost >= threshold) splits.put(node.a, a);
+            }
+            depth--;
+            if (count == values.length) values = Arrays.copyOf(values, count * 2);
+            values[count++] = split;
+        }
+        splits.put(formula, values[0]);
+        return new ParallelFormula(formula, threshold, pool, splits);
+    }
+
+    /**
+     * Evaluates this formula
+     * @return the result of evaluating this formula
+     * @throws Formula.InvalidFormulaException if this formula contains a variable, or an operation is undefined for its operands
+     */
+    public Complex calc() throws Formula.InvalidFormulaException {
+        return calc(Map.of());
+    }
+
+    /**
+     * Evaluates this formula, equivalent to {@link Formula#calc(Map)} on the source formula
+     * @param vars the variables to use
+     * @return the result of evaluating this formula
+     * @throws Formula.InvalidFormulaException if a variable is undefined or an operation is undefined for its operands
+     */
+    public Complex calc(Map<String, Complex> vars) throws Formula.InvalidFormulaException {
+        return calc(vars, null);
+    }
+
+    /**
+     * Evaluates this formula, aborting if evaluating it takes more than the specified budget.
+     * The formula is evaluated by the current thread, only subexpressions that are safe to evaluate on another thread are forked.
+     * The budget is charged by every thread, the time limit is only checked between subexpressions.
+     * @param vars the variables to use
+     * @param budget the budget to charge every operation and function to, or {@code null} to not limit evaluation
+     * @return the result of evaluating this formula
+     * @throws Formula.InvalidFormulaException if a variable is undefined, an operation is undefined for its operands or the budget was exceeded
+     */
+    public Complex calc(Map<String, Complex> vars, @Nullable EvaluationBudget budget) throws Formula.InvalidFormulaException {
+        if (budget != null) budget.check(splits.get(source).cost);
+        try {
+            return evaluate(source, vars, budget);
+        } catch (RuntimeException e) {
+            for (Throwable cause = e; cause != null; cause = cause.getCause())
+                if (cause instanceof Formula.InvalidFormulaException invalid) throw invalid;
+            throw e;
+        }
+    }
+
+    /**
+     * Evaluates a subexpression without recursion, forking the cheaper operand of every operation if both operands
+     * are expensive and safe to evaluate on another thread
+     * @param root the subexpression to evaluate
+     * @param vars the variables to use
+     * @param budget the budget to charge every operation and function to, or {@code null}
+     * @return the value of the subexpression
+     * @throws Formula.InvalidFormulaException if a variable is undefined, an operation is undefined for its operands or the budget was exceeded
+     */
+    protected Complex evaluate(Formula root, Map<String, Complex> vars, @Nullable EvaluationBudget budget) throws Formula.InvalidFormulaException {
+        Formula[] nodes = new Formula[16];
+        byte[] stages = new byte[16];
+        Task[] forks = new Task[16];
+        Complex[] values = new Complex[16];
+        int depth = 0, count = 0;
+        nodes[depth++] = root;
+        try {
+            while (depth > 0) {
+                Formula node = nodes[depth - 1];
+                byte stage = stages[depth - 1];
+                Formula next = null;
+                if (stage == 0) {
+                    Split split = splits.get(node);
+                    if (split == null || split.cost < threshold || node.value != null) {
+                        // cheap enough to evaluate on this thread without splitting it further
+                        charge(budget, split == null ? node.estimateCost() : split.cost);
+                        if (count == values.length) values = Arrays.copyOf(values, count * 2);
+                        values[count++] = node.calc(vars);
+                        depth--;
+                        continue;
+                    }
+                    if (node.op != null && node.b != null) {
+                        Split a = splits.get(node.a), b = splits.get(node.b);
+                        if (a.safe && b.safe && a.cost >= threshold && b.cost >= threshold) {
+                            boolean fork_a = a.cost <= b.cost;
+                            forks[depth - 1] = fork(new Task(fork_a ? node.a : node.b, vars, budget));
+                            stages[depth - 1] = (byte) (fork_a ? 3 : 4);
+                            next = fork_a ? node.b : node.a;
+                        } else {
+                            stages[depth - 1] = 1;
+                            next = node.a;
+                        }
+                    } else {
+                        stages[depth - 1] = 2;
+                        next = node.a;
+                    }
+                } else if (stage == 1) {
+                    stages[depth - 1] = 2;
+                    next = node.b;
+                }
+                if (next != null) {
+                    if (depth == nodes.length) {
+                        nodes = Arrays.copyOf(nodes, depth * 2);
+                        stages = Arrays.copyOf(stages, depth * 2);
+                        forks = Arrays.copyOf(forks, depth * 2);
+                    }
+                    nodes[depth] = next;
+                    stages[depth] = 0;
+                    forks[depth++] = null;
+                    continue;
+                }
+                Complex result;
+                if (node.op != null && node.b != null) {
+                    Complex a, b;
+                    if (stage == 3) {
+                        b = values[--count];
+                        a = forks[depth - 1].join();
+                    } else if (stage == 4) {
+                        a = values[--count];
+                        b = forks[depth - 1].join();
+                    } else {
+                        b = values[--count];
+                        a = values[--count];
+                    }
+                    forks[depth - 1] = null;
+                    charge(budget, CalculateButton.getCost(node.op));
+                    result = node.op.f().apply(a, b);
+                } else {
+                    charge(budget, CalculateButton.getCost(node.f));
+                    result = node.f.apply(values[--count]);
+                }
+                if (node.memoizable) node.value = result;
+                values[count++] = result;
+                depth--;
+            }
+        } catch (ArithmeticException e) {
+            cancel(forks, depth);
+            throw new Formula.InvalidFormulaException(e.getMessage());
+        } catch (Formula.InvalidFormulaException | RuntimeException | Error e) {
+            cancel(forks, depth);
+            throw e;
+        }
+        return values[0];
+    }
+
+    /**
+     * Starts evaluating a subexpression in the pool. A task forked by a thread that is not a worker of the pool,
+     * e.g. the game thread, is submitted to the pool, as {@link RecursiveTask#fork()} would use the common pool
+     * @param task the subexpression to evaluate
+     * @return the task
+     */
+    private Task fork(Task task) {
+        if (ForkJoinTask.getPool() == pool) task.fork();
+        else pool.execute(task);
+        return task;
+    }
+
+    /**
+     * Cancels the forked subexpressions that were not joined yet, after evaluating failed
+     * @param forks the forked subexpression of every node that is being evaluated, or {@code null}
+     * @param depth the amount of nodes that are being evaluated
+     */
+    private static void cancel(Task[] forks, int depth) {
+        for (int i = 0; i < depth; i++) if (forks[i] != null) forks[i].cancel(true);
+    }
+
+    /**
+     * Charges a cost to the budget, which is shared by all threads evaluating the formula
+     * @param budget the budget, or {@code null}
+     * @param cost the cost to charge
+     * @throws Formula.InvalidFormulaException if the budget was exceeded
+     */
+    private static void charge(@Nullable EvaluationBudget budget, long cost) throws Formula.InvalidFormulaException {
+        if (budget != null) budget.charge(cost);
+    }
+
+    /**
+     * Returns the estimated cost of evaluating this formula
+     * @return the estimated cost
+     */
+    public long estimateCost() {
+        return splits.get(source).cost;
+    }
+
+    /**
+     * Returns the formula this object was prepared from
+     * @return the source formula
+     */
+    public Formula getSource() {
+        return source;
+    }
+
+    /**
+     * Returns a human-readable string representation of the source formula
+     * @return a human-readable string representation of the source formula
+     */
+    @Override
+    public String toString() {
+        return source.toString();
+    }
+
+    /**
+     * The estimated cost of a subexpression, and whether it may be evaluated on another thread
+     * @param cost the estimated cost of the subexpression
+     * @param safe whether all operations and functions in the subexpression are pure and thread-safe
+     */
+    protected record Split(long cost, boolean safe) {
+    }
+
+    /**
+     * A subexpression that is evaluated in the pool
+     */
+    private class Task extends RecursiveTask<Complex> {
+        /**
+         * The subexpression to evaluate
+         */
+        private final Formula node;
+
+        /**
+         * The variables to use
+         */
+        private final Map<String, Complex> vars;
+
+        /**
+         * The budget to charge every operation and function to, or {@code null}
+         */
+        private final @Nullable EvaluationBudget budget;
+
+        /**
+         * Constructs a task that evaluates a subexpression
+         * @param node the subexpression to evaluate
+         * @param vars the variables to use
+         * @param budget the budget to charge every operation and function to, or {@code null}
+         */
+        Task(Formula node, Map<String, Complex> vars, @Nullable EvaluationBudget budget) {
+            this.node = node;
+            this.vars = vars;
+            this.budget = budget;
+        }
+
+        @Override
+        protected Complex compute() {
+            try {
+                return evaluate(node, vars, budget);
+            } catch (Formula.InvalidFormulaException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        }
+    }
+}
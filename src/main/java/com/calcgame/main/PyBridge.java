@@ -0,0 +1,158 @@
+package com.calcgame.main;
+
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.python.core.Py;
+import org.python.core.PyObject;
+import org.python.util.PythonInterpreter;
+
+import java.io.Writer;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Calls Python functions of mod scripts directly from Java.<br>
+ * A function is looked up in the script's namespace once, when the script is loaded, and every call passes the
+ * arguments to {@link PyObject#__call__} directly, instead of writing them to the namespace and reading them back.
+ * Java objects are adapted to Python objects once where possible: the {@link GameState} is adapted once
+ * (see {@link GameState#toPy()}), and an {@link ActionContext} is adapted once for both redoing and undoing an action.
+ */
+public final class PyBridge {
+    /**
+     * A private constructor to prevent accidental instantiations of this class
+     */
+    private PyBridge() {}
+
+    /**
+     * Returns a function defined by a script that was executed in the specified interpreter
+     * @param py the interpreter the script was executed in
+     * @param name the name of the function
+     * @return the function, or {@code null} if the script did not define a callable object with that name
+     */
+    public static @Nullable PyObject getCallable(PythonInterpreter py, String name) {
+        PyObject f = py.get(name);
+        return f != null && f.isCallable() ? f : null;
+    }
+
+    /**
+     * Returns an operation that calls a Python function with it's operands.
+     * If the function exceeds it's time limit, the operation throws an {@link ArithmeticException}, so the formula is invalid
+     * @param script the id of the operation's script, see {@link ScriptWatchdog}
+     * @param f the Python function, that takes two complex numbers and returns a number
+     * @return the operation
+     */
+    public static BinaryOperator<Complex> operation(String script, PyObject f) {
+        return (a, b) -> Complex.of(timed(script, () -> f.__call__(a.toPy(), b.toPy())).__complex__());
+    }
+
+    /**
+     * Returns a function that calls a Python function with it's argument.
+     * If the Python function exceeds it's time limit, the function throws an {@link ArithmeticException}, so the formula is invalid
+     * @param script the id of the function's script, see {@link ScriptWatchdog}
+     * @param f the Python function, that takes a complex number and returns a number
+     * @return the function
+     */
+    public static UnaryOperator<Complex> function(String script, PyObject f) {
+        return (x) -> Complex.of(timed(script, () -> f.__call__(x.toPy())).__complex__());
+    }
+
+    /**
+     * Calls a Python function used in a formula, within it's time limit
+     * @param script the id of the script
+     * @param call the call of the function
+     * @return the result of the function
+     * @throws ArithmeticException if the function exceeded it's time limit
+     */
+    private static PyObject timed(String script, Supplier<PyObject> call) {
+        try {
+            return ScriptWatchdog.callInFormula(script, call);
+        } catch (ScriptWatchdog.ScriptTimeoutException e) {
+            throw new ArithmeticException(e.getMessage());
+        }
+    }
+
+    /**
+     * Returns an operation that evaluates a compiled expression of {@code a} and {@code b}
+     * @param expression the expression, compiled with the names {@code a} and {@code b}
+     * @return the operation
+     */
+    public static BinaryOperator<Complex> operation(PyExpression expression) {
+        return (a, b) -> Complex.of(expression.eval(a.toPy(), b.toPy()).__complex__());
+    }
+
+    /**
+     * Returns a function that evaluates a compiled expression of {@code x}
+     * @param expression the expression, compiled with the name {@code x}
+     * @return the function
+     */
+    public static UnaryOperator<Complex> function(PyExpression expression) {
+        return (x) -> Complex.of(expression.eval(x.toPy()).__complex__());
+    }
+
+    /**
+     * Returns a button action that evaluates a compiled expression of {@code state} and {@code ctx}
+     * @param expression the expression, compiled with the names {@code state} and {@code ctx}
+     * @return the action's function
+     */
+    public static Consumer<ActionContext> action(PyExpression expression) {
+        return (ctx) -> expression.eval(ctx.state().toPy(), adapt(ctx));
+    }
+
+    /**
+     * Returns a consumer that calls a Python function with the adapted object it accepts
+     * @param script the id of the function's script, see {@link ScriptWatchdog}
+     * @param f the Python function, that takes one argument
+     * @param out the output of the function while it is called, see {@link ModInterpreters#withOutput(Writer, Runnable)}
+     * @return the consumer
+     * @param <T> the type of the function's argument
+     */
+    public static <T> Consumer<T> consumer(String script, PyObject f, Writer out) {
+        return new Consumer<>() {
+            /**
+             * The last accepted object and it's adapted version, as an action is usually redone and undone with the same context
+             */
+            private volatile Adapted last;
+
+            @Override
+            public void accept(T x) {
+                Adapted adapted = last;
+                if (adapted == null || adapted.java() != x) last = adapted = new Adapted(x, adapt(x));
+                PyObject arg = adapted.py();
+                ModInterpreters.withOutput(out, () -> ScriptWatchdog.run(script, () -> f.__call__(arg)));
+            }
+        };
+    }
+
+    /**
+     * Adapts a Java object to a Python object, reusing the adapted {@link GameState}
+     * @param x the object to adapt
+     * @return the adapted object
+     */
+    public static PyObject adapt(Object x) {
+        if (x instanceof PyObject py) return py;
+        if (x instanceof GameState state) return state.toPy();
+        return Py.java2py(x);
+    }
+
+    /**
+     * Creates the output of a script, that writes everything using the specified logger.
+     * It is set for the thread running the script before every call, as the interpreter's {@code sys} module
+     * is shared by the whole mod (see {@link ModInterpreters#withOutput(Writer, Runnable)})
+     * @param logger the logger to use
+     * @return the output
+     * @see Utils#writerFromLogger(Logger)
+     */
+    public static Writer output(Logger logger) {
+        return Utils.writerFromLogger(logger);
+    }
+
+    /**
+     * A Java object and the Python object it was adapted to
+     * @param java the Java object
+     * @param py the Python object
+     */
+    private record Adapted(Object java, PyObject py) {
+    }
+}
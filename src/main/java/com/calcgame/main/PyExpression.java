@@ -0,0 +1,676 @@
+package com.calcgame.main;
+
+import org.jetbrains.annotations.Nullable;
+import org.python.core.Py;
+import org.python.core.PyComplex;
+import org.python.core.PyFloat;
+import org.python.core.PyObject;
+import org.python.core.PySlice;
+import org.python.core.PyString;
+import org.python.core.PySystemState;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A single-line Python expression from a mod, compiled into a tree of Java lambdas, so evaluating it
+ * does not need a Python interpreter, a compiled script or a frame.<br>
+ * The values are still Python objects, and every operator, call and attribute is evaluated using the same methods
+ * of {@link PyObject} that code compiled by Jython uses, so the results, and the errors, are the same as if the expression
+ * was evaluated by Jython. Only parsing, name lookup and interpreting the code are done in Java.<br>
+ * The supported subset of Python 2 is:
+ * <ul>
+ *     <li>decimal integer, float and imaginary literals ({@code 1}, {@code 0.5}, {@code 1e3}, {@code 2j}),
+ *     and ASCII string literals in single or double quotes, with the escapes {@code \\ \' \" \n \t}</li>
+ *     <li>the names passed to {@link PyExpression#compile(String, String...)}, {@code True}, {@code False}, {@code None}
+ *     and the names of built-in functions</li>
+ *     <li>the operators {@code + - * / // % **}, unary {@code + -}, a single comparison {@code < <= > >= == !=},
+ *     {@code and}, {@code or}, {@code not} and {@code x if condition else y}</li>
+ *     <li>attributes ({@code x.real}), calls with positional arguments ({@code state.setScreen('0')}),
+ *     indexing ({@code s[0]}) and simple slices ({@code s[:-1]})</li>
+ *     <li>the statement {@code pass}</li>
+ * </ul>
+ * Anything else, including scripts of several lines, is not compiled, and has to be executed by Jython instead.
+ */
+public final class PyExpression {
+    /**
+     * The deepest nesting of parentheses, calls and operators that is compiled, as parsing is recursive
+     */
+    public static final int MAX_DEPTH = 100;
+
+    /**
+     * The keywords of Python 2, which may not be used as names
+     */
+    private static final Set<String> KEYWORDS = Set.of(
+            "and", "as", "assert", "break", "class", "continue", "def", "del", "elif", "else", "except", "exec",
+            "finally", "for", "from", "global", "if", "import", "in", "is", "lambda", "not", "or", "pass",
+            "print", "raise", "return", "try", "while", "with", "yield"
+    );
+
+    /**
+     * The operators made of two characters
+     */
+    private static final Set<String> DOUBLE_OPERATORS = Set.of("**", "//", "<=", ">=", "==", "!=");
+
+    /**
+     * The comparison operators
+     */
+    private static final Set<String> COMPARISONS = Set.of("<", "<=", ">", ">=", "==", "!=");
+
+    /**
+     * The operators made of one character
+     */
+    private static final String SINGLE_OPERATORS = "+-*/%<>()[],.:";
+
+    /**
+     * The source of the expression
+     */
+    private final String source;
+
+    /**
+     * The names of the values passed to {@link PyExpression#eval(PyObject...)}
+     */
+    private final String[] names;
+
+    /**
+     * The root of the compiled tree
+     */
+    private final Node root;
+
+    /**
+     * Constructs a compiled expression, use {@link PyExpression#compile(String, String...)} instead
+     * @param source the source of the expression
+     * @param names the names of the values passed when evaluating
+     * @param root the root of the compiled tree
+     */
+    private PyExpression(String source, String[] names, Node root) {
+        this.source = source;
+        this.names = names;
+        this.root = root;
+    }
+
+    /**
+     * Compiles an expression, if it is in the supported subset of Python
+     * @param source the source of the expression
+     * @param names the names of the values that will be passed when evaluating it, e.g. {@code a} and {@code b} for an operation
+     * @return the compiled expression, or {@code null} if it is not in the supported subset
+     */
+    public static @Nullable PyExpression compile(String source, String... names) {
+        try {
+            Parser parser = new Parser(tokenize(source.strip()), names);
+            Node root = parser.parseStatement();
+            return new PyExpression(source, names.clone(), root);
+        } catch (Unsupported e) {
+            return null;
+        }
+    }
+
+    /**
+     * Evaluates this expression
+     * @param values the values of the names this expression was compiled with, in the same order
+     * @return the value of the expression, {@link Py#None} for {@code pass}
+     * @throws org.python.core.PyException if evaluating the expression raised an error, like Jython would
+     */
+    public PyObject eval(PyObject... values) {
+        if (values.length != names.length)
+            throw new IllegalArgumentException("Expected %d values, got %d".formatted(names.length, values.length));
+        return root.eval(values);
+    }
+
+    /**
+     * Returns the names of the values this expression takes
+     * @return a copy of the names
+     */
+    public String[] getNames() {
+        return names.clone();
+    }
+
+    /**
+     * Returns the source of this expression
+     * @return the source of this expression
+     */
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    /**
+     * Splits the source of an expression into tokens
+     * @param source the source, without leading and trailing whitespace
+     * @return the tokens, ending with a token of type {@link TokenType#END}
+     * @throws Unsupported if the source contains anything that is not in the supported subset
+     */
+    private static List<Token> tokenize(String source) throws Unsupported {
+        List<Token> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < source.length()) {
+            char c = source.charAt(i);
+            if (c == ' ' || c == '\t') {
+                i++;
+            } else if (isNameCharacter(c) && !isDigit(c)) {
+                int start = i;
+                while (i < source.length() && isNameCharacter(source.charAt(i))) i++;
+                tokens.add(new Token(TokenType.NAME, source.substring(start, i), null));
+            } else if (isDigit(c) || (c == '.' && i + 1 < source.length() && isDigit(source.charAt(i + 1)))) {
+                i = readNumber(source, i, tokens);
+            } else if (c == '\'' || c == '"') {
+                i = readString(source, i, tokens);
+            } else if (i + 1 < source.length() && DOUBLE_OPERATORS.contains(source.substring(i, i + 2))) {
+                tokens.add(new Token(TokenType.OPERATOR, source.substring(i, i + 2), null));
+                i += 2;
+            } else if (SINGLE_OPERATORS.indexOf(c) >= 0) {
+                tokens.add(new Token(TokenType.OPERATOR, String.valueOf(c), null));
+                i++;
+            } else throw new Unsupported();
+        }
+        tokens.add(new Token(TokenType.END, "", null));
+        return tokens;
+    }
+
+    /**
+     * Reads a decimal number literal
+     * @param source the source
+     * @param start the index of the first character of the literal
+     * @param tokens the tokens to add the literal to
+     * @return the index after the literal
+     * @throws Unsupported if the literal is octal, hexadecimal, binary or a long literal
+     */
+    private static int readNumber(String source, int start, List<Token> tokens) throws Unsupported {
+        int i = start;
+        boolean is_float = false;
+        while (i < source.length() && isDigit(source.charAt(i))) i++;
+        if (i < source.length() && source.charAt(i) == '.') {
+            is_float = true;
+            i++;
+            while (i < source.length() && isDigit(source.charAt(i))) i++;
+        }
+        if (i < source.length() && (source.charAt(i) == 'e' || source.charAt(i) == 'E')) {
+            is_float = true;
+            i++;
+            if (i < source.length() && (source.charAt(i) == '+' || source.charAt(i) == '-')) i++;
+            if (i == source.length() || !isDigit(source.charAt(i))) throw new Unsupported();
+            while (i < source.length() && isDigit(source.charAt(i))) i++;
+        }
+        String text = source.substring(start, i);
+        boolean imaginary = i < source.length() && (source.charAt(i) == 'j' || source.charAt(i) == 'J');
+        if (imaginary) i++;
+        if (i < source.length() && isNameCharacter(source.charAt(i))) throw new Unsupported();
+        PyObject value;
+        if (imaginary) value = new PyComplex(0, Double.parseDouble(text));
+        else if (is_float) value = new PyFloat(Double.parseDouble(text));
+        // a leading zero makes an integer octal in Python 2
+        else if (text.length() > 1 && text.charAt(0) == '0') throw new Unsupported();
+        else {
+            BigInteger integer = new BigInteger(text);
+            value = integer.bitLength() < 32 ? Py.newInteger(integer.intValue()) : Py.newLong(integer);
+        }
+        tokens.add(new Token(TokenType.CONSTANT, text, value));
+        return i;
+    }
+
+    /**
+     * Returns whether a character is an ASCII digit
+     * @param c the character
+     * @return whether the character is between {@code 0} and {@code 9}
+     */
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Returns whether a character may be a part of a name, names in Python 2 only contain ASCII characters
+     * @param c the character
+     * @return whether the character is an ASCII letter, digit or underscore
+     */
+    private static boolean isNameCharacter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || isDigit(c) || c == '_';
+    }
+
+    /**
+     * Reads a string literal
+     * @param source the source
+     * @param start the index of the opening quote
+     * @param tokens the tokens to add the literal to
+     * @return the index after the closing quote
+     * @throws Unsupported if the literal is not closed, is triple-quoted, or contains an unsupported escape or character
+     */
+    private static int readString(String source, int start, List<Token> tokens) throws Unsupported {
+        char quote = source.charAt(start);
+        if (source.startsWith(String.valueOf(quote).repeat(3), start)) throw new Unsupported();
+        StringBuilder value = new StringBuilder();
+        int i = start + 1;
+        while (true) {
+            if (i == source.length()) throw new Unsupported();
+            char c = source.charAt(i++);
+            if (c == quote) break;
+            if (c > 127 || c == '\n' || c == '\r') throw new Unsupported();
+            if (c == '\\') {
+                if (i == source.length()) throw new Unsupported();
+                c = switch (source.charAt(i++)) {
+                    case '\\' -> '\\';
+                    case '\'' -> '\'';
+                    case '"' -> '"';
+                    case 'n' -> '\n';
+                    case 't' -> '\t';
+                    default -> throw new Unsupported();
+                };
+            }
+            value.append(c);
+        }
+        tokens.add(new Token(TokenType.CONSTANT, source.substring(start, i), new PyString(value.toString())));
+        return i;
+    }
+
+    /**
+     * A compiled part of an expression
+     */
+    @FunctionalInterface
+    private interface Node {
+        /**
+         * Evaluates this part of the expression
+         * @param values the values of the names the expression was compiled with
+         * @return the value
+         */
+        PyObject eval(PyObject[] values);
+    }
+
+    /**
+     * The type of a token
+     */
+    private enum TokenType {
+        NAME, CONSTANT, OPERATOR, END
+    }
+
+    /**
+     * A token of the source of an expression
+     * @param type the type of the token
+     * @param text the source of the token
+     * @param value the value of a {@link TokenType#CONSTANT}, or {@code null}
+     */
+    private record Token(TokenType type, String text, @Nullable PyObject value) {
+        /**
+         * Returns whether this token is the specified operator or keyword
+         * @param s the operator or keyword
+         * @return whether this token is it
+         */
+        boolean is(String s) {
+            return (type == TokenType.OPERATOR || type == TokenType.NAME) && text.equals(s);
+        }
+    }
+
+    /**
+     * Thrown while compiling an expression that is not in the supported subset
+     */
+    private static class Unsupported extends Exception {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * A recursive descent parser of the supported subset, following the grammar of Python 2 expressions
+     */
+    private static class Parser {
+        /**
+         * The tokens of the expression
+         */
+        private final List<Token> tokens;
+
+        /**
+         * The names of the values passed when evaluating
+         */
+        private final List<String> names;
+
+        /**
+         * The index of the current token
+         */
+        private int pos = 0;
+
+        /**
+         * The current nesting depth
+         */
+        private int depth = 0;
+
+        /**
+         * Constructs a parser
+         * @param tokens the tokens of the expression
+         * @param names the names of the values passed when evaluating
+         */
+        Parser(List<Token> tokens, String[] names) {
+            this.tokens = tokens;
+            this.names = Arrays.asList(names);
+        }
+
+        /**
+         * Returns the current token
+         * @return the current token
+         */
+        private Token peek() {
+            return tokens.get(pos);
+        }
+
+        /**
+         * Skips the current token if it is the specified operator or keyword
+         * @param s the operator or keyword
+         * @return whether the token was skipped
+         */
+        private boolean accept(String s) {
+            if (!peek().is(s)) return false;
+            pos++;
+            return true;
+        }
+
+        /**
+         * Skips the current token, which has to be the specified operator or keyword
+         * @param s the operator or keyword
+         * @throws Unsupported if the current token is something else
+         */
+        private void expect(String s) throws Unsupported {
+            if (!accept(s)) throw new Unsupported();
+        }
+
+        /**
+         * Parses the whole source: {@code pass} or an expression
+         * @return the compiled statement
+         * @throws Unsupported if the source is not in the supported subset
+         */
+        Node parseStatement() throws Unsupported {
+            Node node;
+            if (accept("pass")) node = (values) -> Py.None;
+            else node = parseExpression();
+            if (peek().type() != TokenType.END) throw new Unsupported();
+            return node;
+        }
+
+        /**
+         * Parses {@code or_test ['if' or_test 'else' expression]}
+         * @return the compiled expression
+         * @throws Unsupported if the expression is not in the supported subset
+         */
+        private Node parseExpression() throws Unsupported {
+            if (++depth > MAX_DEPTH) throw new Unsupported();
+            Node value = parseOr();
+            if (accept("if")) {
+                Node condition = parseOr();
+                expect("else");
+                Node otherwise = parseExpression();
+                Node then = value;
+                value = (values) -> condition.eval(values).__nonzero__() ? then.eval(values) : otherwise.eval(values);
+            }
+            depth--;
+            return value;
+        }
+
+        /**
+         * Parses {@code and_test ('or' and_test)*}
+         * @return the compiled expression
+         * @throws Unsupported if the expression is not in the supported subset
+         */
+        private Node parseOr() throws Unsupported {
+            Node value = parseAnd();
+            while (accept("or")) {
+                Node a = value, b = parseAnd();
+                value = (values) -> {
+                    PyObject x = a.eval(values);
+                    return x.__nonzero__() ? x : b.eval(values);
+                };
+            }
+            return value;
+        }
+
+        /**
+         * Parses {@code not_test ('and' not_test)*}
+         * @return the compiled expression
+         * @throws Unsupported if the expression is not in the supported subset
+         */
+        private Node parseAnd() throws Unsupported {
+            Node value = parseNot();
+            while (accept("and")) {
+                Node a = value, b = parseNot();
+                value = (values) -> {
+                    PyObject x = a.eval(values);
+                    return x.__nonzero__() ? b.eval(values) : x;
+                };
+            }
+            return value;
+        }
+
+        /**
+         * Parses {@code 'not' not_test | comparison}
+         * @return the compiled expression
+         * @throws Unsupported if the expression is not in the supported subset
+         */
+        private Node parseNot() throws Unsupported {
+            if (accept("not")) {
+                if (++depth > MAX_DEPTH) throw new Unsupported();
+                Node a = parseNot();
+                depth--;
+                return (values) -> a.eval(values).__not__();
+            }
+            return parseComparison();
+        }
+
+        /**
+         * Parses {@code arith [comparison_operator arith]}, chained comparisons are not supported
+         * @return the compiled expression
+         * @throws Unsupported if the expression is not in the supported subset
+         */
+        private Node parseComparison() throws Unsupported {
+            Node a = parseArith();
+            if (peek().type() != TokenType.OPERATOR || !COMPARISONS.contains(peek().text())) return a;
+            String op = tokens.get(pos++).text();
+            Node b = parseArith();
+            if (peek().type() == TokenType.OPERATOR && COMPARISONS.contains(peek().text())) throw new Unsupported();
+            return switch (op) {
+                case "<" -> (values) -> a.eval(values)._lt(b.eval(values));
+                case "<=" -> (values) -> a.eval(values)._le(b.eval(values));
+                case ">" -> (values) -> a.eval(values)._gt(b.eval(values));
+                case ">=" -> (values) -> a.eval(values)._ge(b.eval(values));
+                case "==" -> (values) -> a.eval(values)._eq(b.eval(values));
+                default -> (values) -> a.eval(values)._ne(b.eval(values));
+            };
+        }
+
+        /**
+         * Parses {@code term (('+' | '-') term)*}
+         * @return the compiled expression
+         * @throws Unsupported if the expression is not in the supported subset
+         */
+        private Node parseArith() throws Unsupported {
+            Node value = parseTerm();
+            while (true) {
+                Node a = value;
+                if (accept("+")) {
+                    Node b = parseTerm();
+                    value = (values) -> a.eval(values)._add(b.eval(values));
+                } else if (accept("-")) {
+                    Node b = parseTerm();
+                    value = (values) -> a.eval(values)._sub(b.eval(values));
+                } else return value;
+            }
+        }
+
+        /**
+         * Parses {@code factor (('*' | '/' | '//' | '%') factor)*}
+         * @return the compiled expression
+         * @throws Unsupported if the expression is not in the supported subset
+         */
+        private Node parseTerm() throws Unsupported {
+            Node value = parseFactor();
+            while (true) {
+                Node a = value;
+                if (accept("*")) {
+                    Node b = parseFactor();
+                    value = (values) -> a.eval(values)._mul(b.eval(values));
+                } else if (accept("/")) {
+                    Node b = parseFactor();
+                    value = (values) -> a.eval(values)._div(b.eval(values));
+                } else if (accept("//")) {
+                    Node b = parseFactor();
+                    value = (values) -> a.eval(values)._floordiv(b.eval(values));
+                } else if (accept("%")) {
+                    Node b = parseFactor();
+                    value = (values) -> a.eval(values)._mod(b.eval(values));
+                } else return value;
+            }
+        }
+
+        /**
+         * Parses {@code ('+' | '-') factor | power}
+         * @return the compiled expression
+         * @throws Unsupported if the expression is not in the supported subset
+         */
+        private Node parseFactor() throws Unsupported {
+            if (++depth > MAX_DEPTH) throw new Unsupported();
+            Node value;
+            if (accept("-")) {
+                Node a = parseFactor();
+                value = (values) -> a.eval(values).__neg__();
+            } else if (accept("+")) {
+                Node a = parseFactor();
+                value = (values) -> a.eval(values).__pos__();
+            } else value = parsePower();
+            depth--;
+            return value;
+        }
+
+        /**
+         * Parses {@code primary ['**' factor]}
+         * @return the compiled expression
+         * @throws Unsupported if the expression is not in the supported subset
+         */
+        private Node parsePower() throws Unsupported {
+            Node a = parsePrimary();
+            if (!accept("**")) return a;
+            Node b = parseFactor();
+            return (values) -> a.eval(values)._pow(b.eval(values));
+        }
+
+        /**
+         * Parses {@code atom trailer*}, where a trailer is a call, a subscript or an attribute
+         * @return the compiled expression
+         * @throws Unsupported if the expression is not in the supported subset
+         */
+        private Node parsePrimary() throws Unsupported {
+            Node value = parseAtom();
+            while (true) {
+                Node a = value;
+                if (accept("(")) {
+                    Node[] args = parseArguments();
+                    value = (values) -> a.eval(values).__call__(evalAll(args, values));
+                } else if (accept("[")) {
+                    value = parseSubscript(a);
+                } else if (accept(".")) {
+                    Token name = peek();
+                    if (name.type() != TokenType.NAME || KEYWORDS.contains(name.text())) throw new Unsupported();
+                    pos++;
+                    String attribute = name.text().intern();
+                    if (accept("(")) {
+                        // a method call is invoked directly, without creating a bound method, like Jython does
+                        Node[] args = parseArguments();
+                        value = (values) -> a.eval(values).invoke(attribute, evalAll(args, values));
+                    } else value = (values) -> a.eval(values).__getattr__(attribute);
+                } else return value;
+            }
+        }
+
+        /**
+         * Parses the arguments of a call, after the opening parenthesis
+         * @return the compiled arguments
+         * @throws Unsupported if an argument is not in the supported subset, or is a keyword or starred argument
+         */
+        private Node[] parseArguments() throws Unsupported {
+            List<Node> args = new ArrayList<>();
+            while (!accept(")")) {
+                args.add(parseExpression());
+                if (!accept(",")) {
+                    expect(")");
+                    break;
+                }
+            }
+            return args.toArray(new Node[0]);
+        }
+
+        /**
+         * Parses an index or a simple slice, after the opening bracket
+         * @param a the compiled object being subscripted
+         * @return the compiled subscript
+         * @throws Unsupported if the subscript is not in the supported subset
+         */
+        private Node parseSubscript(Node a) throws Unsupported {
+            Node start = peek().is(":") ? null : parseExpression();
+            if (accept("]")) {
+                if (start == null) throw new Unsupported();
+                return (values) -> a.eval(values).__getitem__(start.eval(values));
+            }
+            expect(":");
+            Node stop = peek().is("]") ? null : parseExpression();
+            expect("]");
+            return (values) -> a.eval(values).__getitem__(new PySlice(
+                    start == null ? Py.None : start.eval(values),
+                    stop == null ? Py.None : stop.eval(values),
+                    Py.None));
+        }
+
+        /**
+         * Parses a name, a literal or an expression in parentheses
+         * @return the compiled atom
+         * @throws Unsupported if the atom is not in the supported subset
+         */
+        private Node parseAtom() throws Unsupported {
+            Token token = peek();
+            pos++;
+            switch (token.type()) {
+                case CONSTANT -> {
+                    PyObject value = token.value();
+                    return (values) -> value;
+                }
+                case NAME -> {
+                    return resolve(token.text());
+                }
+                case OPERATOR -> {
+                    if (!token.is("(")) throw new Unsupported();
+                    Node value = parseExpression();
+                    expect(")");
+                    return value;
+                }
+                default -> throw new Unsupported();
+            }
+        }
+
+        /**
+         * Resolves a name to a value passed when evaluating, a constant or a built-in function
+         * @param name the name
+         * @return the compiled name
+         * @throws Unsupported if the name is a keyword or is not defined
+         */
+        private Node resolve(String name) throws Unsupported {
+            if (KEYWORDS.contains(name)) throw new Unsupported();
+            int index = names.indexOf(name);
+            if (index >= 0) return (values) -> values[index];
+            PyObject constant = switch (name) {
+                case "True" -> Py.True;
+                case "False" -> Py.False;
+                case "None" -> Py.None;
+                default -> PySystemState.getDefaultBuiltins().__finditem__(name);
+            };
+            if (constant == null) throw new Unsupported();
+            return (values) -> constant;
+        }
+
+        /**
+         * Evaluates compiled arguments
+         * @param args the compiled arguments
+         * @param values the values of the names the expression was compiled with
+         * @return the values of the arguments
+         */
+        private static PyObject[] evalAll(Node[] args, PyObject[] values) {
+            PyObject[] out = new PyObject[args.length];
+            for (int i = 0; i < args.length; i++) out[i] = args[i].eval(values);
+            return out;
+        }
+    }
+}
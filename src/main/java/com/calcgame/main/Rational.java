@@ -0,0 +1,381 @@
+package com.calcgame.main;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+
+/**
+ * An immutable exact rational number, used to evaluate formulas that only contain rational numbers without rounding.<br>
+ * The numerator and denominator are stored as {@code long}s while they fit, and are promoted to {@link BigInteger}s
+ * only when an operation overflows. The fraction is always reduced, and the denominator is always positive,
+ * so equal numbers have equal representations.
+ * @see Formula#calcExact()
+ */
+public final class Rational implements Comparable<Rational> {
+    /**
+     * The number {@code 0}
+     */
+    public static final Rational ZERO = new Rational(0, 1);
+
+    /**
+     * The number {@code 1}
+     */
+    public static final Rational ONE = new Rational(1, 1);
+
+    /**
+     * The largest absolute value of a {@code double} that is converted to a rational number,
+     * as larger doubles are not exact integers anymore
+     */
+    private static final double MAX_EXACT_DOUBLE = 1L << 53;
+
+    /**
+     * The largest exponent for which {@link Rational#pow(Rational)} computes an exact result
+     */
+    private static final int MAX_EXPONENT = 100;
+
+    /**
+     * The largest amount of bits in the numerator or denominator of a power computed by {@link Rational#pow(Rational)}
+     */
+    private static final long MAX_POWER_BITS = 1 << 16;
+
+    /**
+     * The numerator, if {@link Rational#big_num} is {@code null}
+     */
+    private final long num;
+
+    /**
+     * The denominator, if {@link Rational#big_num} is {@code null}
+     */
+    private final long den;
+
+    /**
+     * The numerator, or {@code null} if it and the denominator fit into {@code long}s
+     */
+    private final @Nullable BigInteger big_num;
+
+    /**
+     * The denominator, or {@code null} if it and the numerator fit into {@code long}s
+     */
+    private final @Nullable BigInteger big_den;
+
+    /**
+     * Constructs a rational number from a reduced fraction of {@code long}s
+     * @param num the numerator
+     * @param den the denominator, must be positive
+     */
+    private Rational(long num, long den) {
+        this.num = num;
+        this.den = den;
+        this.big_num = null;
+        this.big_den = null;
+    }
+
+    /**
+     * Constructs a rational number from a reduced fraction of {@link BigInteger}s, that does not fit into {@code long}s
+     * @param num the numerator
+     * @param den the denominator, must be positive
+     */
+    private Rational(BigInteger num, BigInteger den) {
+        this.num = 0;
+        this.den = 1;
+        this.big_num = num;
+        this.big_den = den;
+    }
+
+    /**
+     * Returns the specified integer as a rational number
+     * @param x the integer
+     * @return a rational number equal to {@code x}
+     */
+    public static Rational of(long x) {
+        return new Rational(x, 1);
+    }
+
+    /**
+     * Returns the fraction {@code num/den}
+     * @param num the numerator
+     * @param den the denominator
+     * @return the reduced fraction
+     * @throws ArithmeticException if the denominator is zero
+     */
+    public static Rational of(long num, long den) {
+        if (den == 0) throw new ArithmeticException("complex division by zero");
+        if (num == 0) return ZERO;
+        if (den == Long.MIN_VALUE || num == Long.MIN_VALUE) return of(BigInteger.valueOf(num), BigInteger.valueOf(den));
+        if (den < 0) {
+            num = -num;
+            den = -den;
+        }
+        long gcd = gcd(Math.abs(num), den);
+        return new Rational(num / gcd, den / gcd);
+    }
+
+    /**
+     * Returns the fraction {@code num/den}
+     * @param num the numerator
+     * @param den the denominator
+     * @return the reduced fraction, stored as {@code long}s if possible
+     * @throws ArithmeticException if the denominator is zero
+     */
+    public static Rational of(BigInteger num, BigInteger den) {
+        if (den.signum() == 0) throw new ArithmeticException("complex division by zero");
+        if (den.signum() < 0) {
+            num = num.negate();
+            den = den.negate();
+        }
+        BigInteger gcd = num.gcd(den);
+        if (!gcd.equals(BigInteger.ONE) && gcd.signum() != 0) {
+            num = num.divide(gcd);
+            den = den.divide(gcd);
+        }
+        if (num.bitLength() < 64 && den.bitLength() < 64) return new Rational(num.longValue(), den.longValue());
+        return new Rational(num, den);
+    }
+
+    /**
+     * Returns the specified number as a rational number, if it is a real integer small enough to be exact
+     * @param x the number to convert
+     * @return a rational number equal to {@code x}, or {@code null} if {@code x} is not real,
+     * not an integer or larger than {@code 2^53}
+     */
+    public static @Nullable Rational of(Complex x) {
+        if (x.imag() != 0 || x.real() != Math.rint(x.real()) || Math.abs(x.real()) > MAX_EXACT_DOUBLE) return null;
+        return of((long) x.real());
+    }
+
+    /**
+     * Returns the greatest common divisor of two non-negative numbers
+     * @param a the first number
+     * @param b the second number
+     * @return the greatest common divisor
+     */
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long tmp = a % b;
+            a = b;
+            b = tmp;
+        }
+        return a;
+    }
+
+    /**
+     * Returns whether this number is stored as {@code long}s
+     * @return whether this number is stored as {@code long}s
+     */
+    private boolean isSmall() {
+        return big_num == null;
+    }
+
+    /**
+     * Returns the numerator
+     * @return the numerator as a {@link BigInteger}
+     */
+    public BigInteger numerator() {
+        return big_num == null ? BigInteger.valueOf(num) : big_num;
+    }
+
+    /**
+     * Returns the denominator
+     * @return the denominator as a {@link BigInteger}, always positive
+     */
+    public BigInteger denominator() {
+        return big_den == null ? BigInteger.valueOf(den) : big_den;
+    }
+
+    /**
+     * Returns whether this number is an integer
+     * @return whether the denominator is {@code 1}
+     */
+    public boolean isInteger() {
+        return isSmall() ? den == 1 : big_den.equals(BigInteger.ONE);
+    }
+
+    /**
+     * Returns {@code this + other}
+     * @param other the number to add
+     * @return the sum
+     */
+    public Rational add(Rational other) {
+        if (isSmall() && other.isSmall()) {
+            try {
+                if (den == 1 && other.den == 1) return new Rational(Math.addExact(num, other.num), 1);
+                return of(Math.addExact(Math.multiplyExact(num, other.den), Math.multiplyExact(other.num, den)),
+                        Math.multiplyExact(den, other.den));
+            } catch (ArithmeticException ignored) {
+                // overflow, use BigIntegers
+            }
+        }
+        return of(numerator().multiply(other.denominator()).add(other.numerator().multiply(denominator())),
+                denominator().multiply(other.denominator()));
+    }
+
+    /**
+     * Returns {@code this - other}
+     * @param other the number to subtract
+     * @return the difference
+     */
+    public Rational sub(Rational other) {
+        return add(other.neg());
+    }
+
+    /**
+     * Returns {@code this * other}
+     * @param other the number to multiply by
+     * @return the product
+     */
+    public Rational mul(Rational other) {
+        if (isSmall() && other.isSmall()) {
+            try {
+                if (den == 1 && other.den == 1) return new Rational(Math.multiplyExact(num, other.num), 1);
+                return of(Math.multiplyExact(num, other.num), Math.multiplyExact(den, other.den));
+            } catch (ArithmeticException ignored) {
+                // overflow, use BigIntegers
+            }
+        }
+        return of(numerator().multiply(other.numerator()), denominator().multiply(other.denominator()));
+    }
+
+    /**
+     * Returns {@code this / other}
+     * @param other the divisor
+     * @return the quotient
+     * @throws ArithmeticException if {@code other} is zero
+     */
+    public Rational div(Rational other) {
+        if (other.signum() == 0) throw new ArithmeticException("complex division by zero");
+        if (isSmall() && other.isSmall()) {
+            try {
+                return of(Math.multiplyExact(num, other.den), Math.multiplyExact(den, other.num));
+            } catch (ArithmeticException ignored) {
+                // overflow, use BigIntegers
+            }
+        }
+        return of(numerator().multiply(other.denominator()), denominator().multiply(other.numerator()));
+    }
+
+    /**
+     * Returns {@code this ** other}, if the result is rational
+     * @param other the exponent
+     * @return the power, or {@code null} if the exponent is not an integer, is larger than {@value MAX_EXPONENT}
+     * or the result would be too large
+     * @throws ArithmeticException if this number is zero and the exponent is negative
+     */
+    public @Nullable Rational pow(Rational other) {
+        if (!other.isInteger() || other.abs().compareTo(of(MAX_EXPONENT)) > 0) return null;
+        int exponent = other.numerator().intValue();
+        if ((long) Math.max(numerator().bitLength(), denominator().bitLength()) * Math.abs(exponent) > MAX_POWER_BITS) return null;
+        if (exponent < 0 && signum() == 0) throw new ArithmeticException("0.0 to a negative or complex power");
+        Rational out = of(numerator().pow(Math.abs(exponent)), denominator().pow(Math.abs(exponent)));
+        return exponent < 0 ? ONE.div(out) : out;
+    }
+
+    /**
+     * Returns {@code this % other}, defined as {@code this - floor(this/other) * other}
+     * @param other the divisor
+     * @return the remainder
+     * @throws ArithmeticException if {@code other} is zero
+     */
+    public Rational mod(Rational other) {
+        return sub(div(other).floor().mul(other));
+    }
+
+    /**
+     * Returns the largest integer that is not larger than this number
+     * @return the floor of this number
+     */
+    public Rational floor() {
+        if (isInteger()) return this;
+        if (isSmall()) return of(Math.floorDiv(num, den));
+        BigInteger[] qr = big_num.divideAndRemainder(big_den);
+        return of(big_num.signum() < 0 ? qr[0].subtract(BigInteger.ONE) : qr[0], BigInteger.ONE);
+    }
+
+    /**
+     * Returns this number rounded towards zero, like Python's {@code int()}
+     * @return the integral part of this number
+     */
+    public Rational truncate() {
+        if (isInteger()) return this;
+        if (isSmall()) return of(num / den);
+        return of(big_num.divide(big_den), BigInteger.ONE);
+    }
+
+    /**
+     * Returns {@code -this}
+     * @return the negated number
+     */
+    public Rational neg() {
+        if (isSmall() && num != Long.MIN_VALUE) return new Rational(-num, den);
+        return of(numerator().negate(), denominator());
+    }
+
+    /**
+     * Returns the absolute value of this number
+     * @return the absolute value
+     */
+    public Rational abs() {
+        return signum() < 0 ? neg() : this;
+    }
+
+    /**
+     * Returns the sign of this number
+     * @return {@code -1}, {@code 0} or {@code 1} if this number is negative, zero or positive
+     */
+    public int signum() {
+        return isSmall() ? Long.signum(num) : big_num.signum();
+    }
+
+    /**
+     * Returns the closest {@code double} to this number
+     * @return this number as a {@code double}
+     */
+    public double doubleValue() {
+        if (isSmall() && Math.abs(num) <= MAX_EXACT_DOUBLE && den <= MAX_EXACT_DOUBLE) return (double) num / den;
+        if (isInteger()) return numerator().doubleValue();
+        return new BigDecimal(numerator()).divide(new BigDecimal(denominator()), MathContext.DECIMAL128).doubleValue();
+    }
+
+    /**
+     * Converts this number to a complex number, rounding it to the closest {@code double}
+     * @return a real complex number closest to this number
+     */
+    public Complex toComplex() {
+        return Complex.of(doubleValue());
+    }
+
+    @Override
+    public int compareTo(Rational other) {
+        if (isSmall() && other.isSmall()) {
+            try {
+                return Long.compare(Math.multiplyExact(num, other.den), Math.multiplyExact(other.num, den));
+            } catch (ArithmeticException ignored) {
+                // overflow, use BigIntegers
+            }
+        }
+        return numerator().multiply(other.denominator()).compareTo(other.numerator().multiply(denominator()));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Rational other)) return false;
+        if (isSmall() != other.isSmall()) return false;
+        if (isSmall()) return num == other.num && den == other.den;
+        return big_num.equals(other.big_num) && big_den.equals(other.big_den);
+    }
+
+    @Override
+    public int hashCode() {
+        return isSmall() ? Long.hashCode(num) * 31 + Long.hashCode(den) : big_num.hashCode() * 31 + big_den.hashCode();
+    }
+
+    /**
+     * Returns this number as {@code num} or {@code num/den}
+     * @return a string representation of this number
+     */
+    @Override
+    public String toString() {
+        return isInteger() ? numerator().toString() : numerator() + "/" + denominator();
+    }
+}
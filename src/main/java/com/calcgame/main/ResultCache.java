@@ -0,0 +1,139 @@
+package com.calcgame.main;
+
+import com.calcgame.main.buttons.CalculateButton;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.function.BinaryOperator;
+import java.util.function.UnaryOperator;
+
+/**
+ * A bounded cache of the results of a pure operation or function, keyed by the bits of their operands.<br>
+ * The cache is a direct-mapped table: every combination of operands has a single slot, and a new result replaces
+ * whatever was in it, so the cache never grows and a lookup is a hash and a single comparison of the operands' bits.
+ * Every slot holds an immutable entry, so the cache may be used by several threads at once without locking,
+ * at worst a result is computed twice.<br>
+ * Mod operations and functions declared pure are wrapped in {@link MemoizedOperation} or {@link MemoizedFunction}
+ * when they are added, so a repeated call with the same operands does not call the mod script again.
+ * @see CalculateButton#setFunctionPure(String, int)
+ */
+public class ResultCache {
+    /**
+     * The amount of results remembered for an operation or function declared pure without a cache size
+     */
+    public static final int DEFAULT_SIZE = 1024;
+
+    /**
+     * The slots of the table, a slot is {@code null} until a result is put into it
+     */
+    private final Entry[] table;
+
+    /**
+     * The mask of the bits of a hash that select a slot, one less than the length of the table
+     */
+    private final int mask;
+
+    /**
+     * Constructs an empty cache
+     * @param size the amount of results to remember, rounded up to a power of two
+     */
+    public ResultCache(int size) {
+        int length = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+        table = new Entry[length];
+        mask = length - 1;
+    }
+
+    /**
+     * Returns the remembered result for the specified operands
+     * @param a the first operand
+     * @param b the second operand, or {@code null} if this caches a function
+     * @return the result, or {@code null} if it is not remembered
+     */
+    public @Nullable Complex get(Complex a, @Nullable Complex b) {
+        long ar = Double.doubleToRawLongBits(a.real()), ai = Double.doubleToRawLongBits(a.imag());
+        long br = b == null ? 0 : Double.doubleToRawLongBits(b.real()), bi = b == null ? 0 : Double.doubleToRawLongBits(b.imag());
+        Entry entry = table[slot(ar, ai, br, bi)];
+        if (entry == null || entry.ar != ar || entry.ai != ai || entry.br != br || entry.bi != bi) return null;
+        return entry.value;
+    }
+
+    /**
+     * Remembers the result for the specified operands, replacing the result in it's slot
+     * @param a the first operand
+     * @param b the second operand, or {@code null} if this caches a function
+     * @param value the result
+     */
+    public void put(Complex a, @Nullable Complex b, Complex value) {
+        long ar = Double.doubleToRawLongBits(a.real()), ai = Double.doubleToRawLongBits(a.imag());
+        long br = b == null ? 0 : Double.doubleToRawLongBits(b.real()), bi = b == null ? 0 : Double.doubleToRawLongBits(b.imag());
+        table[slot(ar, ai, br, bi)] = new Entry(ar, ai, br, bi, value);
+    }
+
+    /**
+     * Returns the slot of the specified operands
+     * @param ar the bits of the real part of the first operand
+     * @param ai the bits of the imaginary part of the first operand
+     * @param br the bits of the real part of the second operand
+     * @param bi the bits of the imaginary part of the second operand
+     * @return the index of the slot in the table
+     */
+    private int slot(long ar, long ai, long br, long bi) {
+        long h = ((ar * 0x9E3779B97F4A7C15L + ai) * 0x9E3779B97F4A7C15L + br) * 0x9E3779B97F4A7C15L + bi;
+        // the bits of small numbers differ mostly in the exponent, so the high bits have to be mixed into the low ones
+        h = (h ^ h >>> 33) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ h >>> 33) * 0xC4CEB9FE1A85EC53L;
+        return (int) (h ^ h >>> 33) & mask;
+    }
+
+    /**
+     * Returns the amount of results this cache can remember
+     * @return the size of the table
+     */
+    public int size() {
+        return table.length;
+    }
+
+    /**
+     * A remembered result
+     * @param ar the bits of the real part of the first operand
+     * @param ai the bits of the imaginary part of the first operand
+     * @param br the bits of the real part of the second operand, or {@code 0}
+     * @param bi the bits of the imaginary part of the second operand, or {@code 0}
+     * @param value the result
+     */
+    private record Entry(long ar, long ai, long br, long bi, Complex value) {
+    }
+
+    /**
+     * A pure operation that remembers it's results
+     * @param f the operation
+     * @param cache the remembered results
+     */
+    public record MemoizedOperation(BinaryOperator<Complex> f, ResultCache cache) implements BinaryOperator<Complex> {
+        @Override
+        public Complex apply(Complex a, Complex b) {
+            Complex value = cache.get(a, b);
+            if (value == null) {
+                value = f.apply(a, b);
+                cache.put(a, b, value);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * A pure function that remembers it's results
+     * @param f the function
+     * @param cache the remembered results
+     */
+    public record MemoizedFunction(UnaryOperator<Complex> f, ResultCache cache) implements UnaryOperator<Complex> {
+        @Override
+        public Complex apply(Complex x) {
+            Complex value = cache.get(x, null);
+            if (value == null) {
+                value = f.apply(x);
+                cache.put(x, null, value);
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.calcgame.main;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.python.Version;
+import org.python.antlr.base.mod;
+import org.python.compiler.Module;
+import org.python.core.BytecodeLoader;
+import org.python.core.CompileMode;
+import org.python.core.CompilerFlags;
+import org.python.core.ParserFacade;
+import org.python.core.Py;
+import org.python.core.PyCode;
+import org.python.core.PyException;
+import org.python.core.imp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * A cache of compiled mod scripts on the disk, so the scripts do not have to be parsed and compiled on every launch.<br>
+ * Jython compiles a script into a Java class, the bytecode of which is stored in {@link ScriptCache#DIRECTORY}
+ * under the SHA-256 hash of the script, it's compile mode and it's file name. The bytecode depends on the Jython version,
+ * so there is a separate directory for every version, and the directories of other versions are deleted
+ * when the cache is first used. A script that changed has a different hash, so it is compiled again,
+ * and a cache entry is never invalid, at worst it is not used anymore.<br>
+ * Entries of scripts that are not used anymore are removed when the cache is first used, if the cache is larger than
+ * {@link ScriptCache#max_size}: the modification time of an entry is updated whenever it is loaded,
+ * and the least recently used entries are deleted first.
+ * @see Utils#compilePy(String, String, CompileMode, Logger)
+ */
+public final class ScriptCache {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    /**
+     * The directory the compiled scripts of every Jython version are stored in
+     */
+    public static final File DIRECTORY = new File("cache", "scripts");
+
+    /**
+     * The prefix of the names of the classes that compiled scripts are loaded as
+     */
+    private static final String CLASS_PREFIX = "com.calcgame.script._";
+
+    /**
+     * Whether the scripts are stored on the disk, can be disabled if the cache directory is not writable
+     */
+    public static volatile boolean enabled = true;
+
+    /**
+     * The largest total size of the compiled scripts of the current Jython version in bytes, before unused ones are deleted
+     */
+    public static volatile long max_size = 16 * 1024 * 1024;
+
+    /**
+     * How old a temporary file has to be to be deleted, as it was left behind by a launch that did not finish writing it
+     */
+    private static final long TMP_MAX_AGE = 60 * 60 * 1000;
+
+    /**
+     * The directory of the current Jython version, or {@code null} if it was not created yet
+     */
+    private static File version_directory;
+
+    /**
+     * A private constructor to prevent accidental instantiations of this class
+     */
+    private ScriptCache() {}
+
+    /**
+     * Compiles a Python script, or loads it from the cache if it was compiled before
+     * @param script the Python script
+     * @param filename the name of the script shown in errors and tracebacks
+     * @param mode {@link CompileMode#exec} for a script of statements, or {@link CompileMode#eval} for a single expression
+     * @return the compiled script
+     * @throws PyException if the script is not valid Python
+     */
+    public static PyCode compile(String script, String filename, CompileMode mode) {
+        String hash = hash(script, filename, mode);
+        String name = CLASS_PREFIX + hash;
+        File directory = getDirectory();
+        File file = directory == null ? null : new File(directory, hash + ".class");
+        if (file != null && file.isFile()) {
+            try {
+                PyCode code = BytecodeLoader.makeCode(name, Files.readAllBytes(file.toPath()), filename);
+                if (!file.setLastModified(System.currentTimeMillis())) LOGGER.debug("Unable to update the modification time of '{}'", file);
+                return code;
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warn("Unable to load compiled script '{}' from the cache, compiling it again: {}", filename, e);
+            }
+        }
+        CompilerFlags flags = new CompilerFlags();
+        mod node = ParserFacade.parse(script, mode, filename, flags);
+        ByteArrayOutputStream bytecode = new ByteArrayOutputStream();
+        try {
+            Module.compile(node, bytecode, name, filename, true, false, flags, imp.NO_MTIME);
+        } catch (PyException e) {
+            throw e;
+        } catch (Exception e) {
+            LOGGER.warn("Unable to compile script '{}' for the cache, compiling it without caching: {}", filename, e.toString());
+            return Py.compile_flags(script, filename, mode, flags);
+        }
+        byte[] data = bytecode.toByteArray();
+        if (file != null) store(file, data);
+        return BytecodeLoader.makeCode(name, data, filename);
+    }
+
+    /**
+     * Writes a compiled script to the cache. The script is written to a temporary file first,
+     * so another thread or launch never reads a partially written script
+     * @param file the file to store the script in
+     * @param data the bytecode of the script
+     */
+    private static void store(File file, byte[] data) {
+        try {
+            File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+            Files.write(tmp.toPath(), data);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to store compiled script in the cache: {}", e.toString());
+        }
+    }
+
+    /**
+     * Returns the directory of the current Jython version, creating it and deleting the directories of other versions
+     * the first time it is invoked
+     * @return the directory, or {@code null} if the cache is disabled or the directory could not be created
+     */
+    private static synchronized File getDirectory() {
+        if (!enabled) return null;
+        if (version_directory != null) return version_directory;
+        String version = Version.PY_VERSION.replaceAll("[^A-Za-z0-9.+-]", "_");
+        File directory = new File(DIRECTORY, version);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            LOGGER.warn("Unable to create script cache directory '{}', scripts will not be cached", directory.getAbsolutePath());
+            enabled = false;
+            return null;
+        }
+        File[] versions = DIRECTORY.listFiles(File::isDirectory);
+        if (versions != null) for (File other : versions) {
+            if (other.getName().equals(version)) continue;
+            LOGGER.info("Deleting compiled scripts of Jython {}", other.getName());
+            File[] files = other.listFiles();
+            if (files != null) for (File f : files) if (!f.delete()) LOGGER.debug("Unable to delete '{}'", f);
+            if (!other.delete()) LOGGER.debug("Unable to delete '{}'", other);
+        }
+        prune(directory);
+        version_directory = directory;
+        return directory;
+    }
+
+    /**
+     * Deletes the least recently used compiled scripts until the directory is not larger than {@link ScriptCache#max_size},
+     * and temporary files left behind by writes that did not finish
+     * @param directory the directory of the current Jython version
+     */
+    private static void prune(File directory) {
+        File[] files = directory.listFiles(File::isFile);
+        if (files == null) return;
+        long now = System.currentTimeMillis();
+        List<File> entries = new ArrayList<>();
+        long size = 0;
+        for (File f : files) {
+            if (f.getName().endsWith(".class")) {
+                entries.add(f);
+                size += f.length();
+            } else if (f.getName().endsWith(".tmp") && now - f.lastModified() > TMP_MAX_AGE && !f.delete())
+                LOGGER.debug("Unable to delete '{}'", f);
+        }
+        if (size <= max_size) return;
+        entries.sort(Comparator.comparingLong(File::lastModified));
+        int deleted = 0;
+        for (File f : entries) {
+            if (size <= max_size) break;
+            long length = f.length();
+            if (f.delete()) {
+                size -= length;
+                deleted++;
+            } else LOGGER.debug("Unable to delete '{}'", f);
+        }
+        LOGGER.info("Deleted {} unused compiled scripts from the cache", deleted);
+    }
+
+    /**
+     * Returns the key of a script in the cache
+     * @param script the Python script
+     * @param filename the name of the script, which is compiled into it
+     * @param mode the mode the script is compiled in
+     * @return the hexadecimal SHA-256 hash of the mode, file name and script
+     */
+    private static String hash(String script, String filename, CompileMode mode) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(mode.name().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(filename.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            return HexFormat.of().formatHex(digest.digest(script.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+}
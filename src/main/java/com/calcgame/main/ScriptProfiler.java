@@ -0,0 +1,299 @@
+package com.calcgame.main;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+
+/**
+ * Records how often mod scripts are called and how long they take, to find the mod that makes a frame slow.<br>
+ * Every script has a key, which is {@code modid:name} for buttons, operations and functions (e.g. {@code base:>:).on_click}),
+ * and {@code event/listener} for event listeners. The latencies of every key are counted in a histogram with a bucket for
+ * every power of two nanoseconds, so recording a call is cheap and does not allocate.<br>
+ * The statistics can be queried with {@link ScriptProfiler#getStats(String)}, and are logged by {@link ScriptProfiler#dump()},
+ * which is invoked when the game exits and when {@code P} is pressed.
+ */
+public final class ScriptProfiler {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    /**
+     * The amount of buckets in a histogram, bucket {@code i} counts the calls that took less than {@code 2^i} nanoseconds
+     */
+    private static final int BUCKETS = 64;
+
+    /**
+     * Whether calls are recorded, can be disabled to avoid the cost of measuring them
+     */
+    public static volatile boolean enabled = true;
+
+    /**
+     * The histogram of every key that was called, keyed by the key
+     */
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * A private constructor to prevent accidental instantiations of this class
+     */
+    private ScriptProfiler() {}
+
+    /**
+     * Runs a script and records how long it took
+     * @param key the key of the script
+     * @param body the code that executes the script
+     */
+    public static void profile(String key, Runnable body) {
+        if (!enabled) {
+            body.run();
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            body.run();
+        } finally {
+            record(key, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Runs a script that returns a value and records how long it took
+     * @param key the key of the script
+     * @param body the code that executes the script
+     * @return the value returned by the body
+     * @param <T> the type of the value
+     */
+    public static <T> T profile(String key, Supplier<T> body) {
+        if (!enabled) return body.get();
+        long start = System.nanoTime();
+        try {
+            return body.get();
+        } finally {
+            record(key, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Returns an operation that records how long every call of the specified operation takes.
+     * The histogram is looked up once, so a call only measures the time and records it
+     * @param key the key of the operation
+     * @param op the operation
+     * @return the profiled operation
+     */
+    public static BinaryOperator<Complex> operation(String key, BinaryOperator<Complex> op) {
+        Histogram histogram = getHistogram(key);
+        return (a, b) -> {
+            if (!enabled) return op.apply(a, b);
+            long start = System.nanoTime();
+            try {
+                return op.apply(a, b);
+            } finally {
+                histogram.record(System.nanoTime() - start);
+            }
+        };
+    }
+
+    /**
+     * Returns a function that records how long every call of the specified function takes
+     * @param key the key of the function
+     * @param f the function
+     * @return the profiled function
+     * @see ScriptProfiler#operation(String, BinaryOperator)
+     */
+    public static UnaryOperator<Complex> function(String key, UnaryOperator<Complex> f) {
+        Histogram histogram = getHistogram(key);
+        return (x) -> {
+            if (!enabled) return f.apply(x);
+            long start = System.nanoTime();
+            try {
+                return f.apply(x);
+            } finally {
+                histogram.record(System.nanoTime() - start);
+            }
+        };
+    }
+
+    /**
+     * Records a call of a script
+     * @param key the key of the script
+     * @param nanos how long the call took in nanoseconds
+     */
+    public static void record(String key, long nanos) {
+        getHistogram(key).record(nanos);
+    }
+
+    /**
+     * Returns the histogram of a script, creating it if the script was not called yet
+     * @param key the key of the script
+     * @return the histogram
+     */
+    private static Histogram getHistogram(String key) {
+        return histograms.computeIfAbsent(key, (ignored) -> new Histogram());
+    }
+
+    /**
+     * Returns the keys of all scripts that were called
+     * @return an unmodifiable set of the keys
+     */
+    @ForMods
+    public static Set<String> getKeys() {
+        return getAllStats().stream().map(Stats::key).collect(Collectors.toUnmodifiableSet());
+    }
+
+    /**
+     * Returns the statistics of a script
+     * @param key the key of the script
+     * @return the statistics, or {@code null} if the script was never called
+     */
+    @ForMods
+    public static @Nullable Stats getStats(String key) {
+        Histogram histogram = histograms.get(key);
+        if (histogram == null) return null;
+        Stats stats = histogram.snapshot(key);
+        return stats.count() == 0 ? null : stats;
+    }
+
+    /**
+     * Returns the statistics of all scripts, the slowest in total first
+     * @return the statistics
+     */
+    @ForMods
+    public static List<Stats> getAllStats() {
+        return histograms.entrySet().stream()
+                .map(entry -> entry.getValue().snapshot(entry.getKey()))
+                .filter(stats -> stats.count() > 0)
+                .sorted(Comparator.comparingLong(Stats::total_nanos).reversed())
+                .toList();
+    }
+
+    /**
+     * Forgets all recorded calls. The histograms are emptied rather than removed,
+     * as profiled operations and functions keep recording into the histogram they looked up when they were wrapped
+     */
+    @ForMods
+    public static void reset() {
+        histograms.values().forEach(Histogram::reset);
+    }
+
+    /**
+     * Logs the statistics of all scripts, the slowest in total first
+     */
+    @ForMods
+    public static void dump() {
+        List<Stats> stats = getAllStats();
+        if (stats.isEmpty()) {
+            LOGGER.info("No scripts were profiled");
+            return;
+        }
+        LOGGER.info("Script profile ({} scripts, times in ms):", stats.size());
+        LOGGER.info("{}", "%-40s %10s %10s %10s %10s %10s %10s".formatted("script", "calls", "total", "mean", "p50", "p99", "max"));
+        for (Stats s : stats) {
+            LOGGER.info("{}", "%-40s %10d %10.3f %10.3f %10.3f %10.3f %10.3f".formatted(s.key(), s.count(),
+                    millis(s.total_nanos()), millis(s.mean()), millis(s.percentile(.5)), millis(s.percentile(.99)), millis(s.max_nanos())));
+        }
+    }
+
+    /**
+     * Converts nanoseconds to milliseconds
+     * @param nanos the nanoseconds
+     * @return the milliseconds
+     */
+    private static double millis(double nanos) {
+        return nanos / 1e6;
+    }
+
+    /**
+     * The recorded calls of a single script
+     */
+    private static class Histogram {
+        /**
+         * The amount of calls in every bucket, see {@link ScriptProfiler#BUCKETS}
+         */
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        /**
+         * The total time of all calls in nanoseconds
+         */
+        private final LongAdder total = new LongAdder();
+
+        /**
+         * The time of the slowest call in nanoseconds
+         */
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        /**
+         * Records a call
+         * @param nanos how long the call took in nanoseconds
+         */
+        void record(long nanos) {
+            nanos = Math.max(nanos, 0);
+            buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos)));
+            total.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        /**
+         * Forgets all recorded calls, which may be recorded concurrently, so a call recorded meanwhile may be partially forgotten
+         */
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) buckets.set(i, 0);
+            total.reset();
+            max.reset();
+        }
+
+        /**
+         * Copies the recorded calls, which may be recorded concurrently, so the copy is not necessarily consistent
+         * @param key the key of the script
+         * @return the statistics of the script
+         */
+        Stats snapshot(String key) {
+            long[] counts = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) count += counts[i] = buckets.get(i);
+            return new Stats(key, count, total.sum(), max.get(), counts);
+        }
+    }
+
+    /**
+     * The statistics of a script
+     * @param key the key of the script
+     * @param count the amount of calls
+     * @param total_nanos the total time of all calls in nanoseconds
+     * @param max_nanos the time of the slowest call in nanoseconds
+     * @param buckets the amount of calls that took less than {@code 2^i} nanoseconds (and at least {@code 2^(i-1)}) at index {@code i}
+     */
+    public record Stats(String key, long count, long total_nanos, long max_nanos, long[] buckets) {
+        /**
+         * Returns the mean time of a call
+         * @return the mean time in nanoseconds, or {@code 0} if there were no calls
+         */
+        public double mean() {
+            return count == 0 ? 0 : (double) total_nanos / count;
+        }
+
+        /**
+         * Returns an estimate of a percentile of the call times, the upper bound of the bucket it is in
+         * @param p the percentile, between {@code 0} and {@code 1}
+         * @return the percentile in nanoseconds, at most {@link Stats#max_nanos()}
+         */
+        public long percentile(double p) {
+            long rank = (long) Math.ceil(p * count);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) return Math.min(max_nanos, i == 0 ? 0 : (1L << Math.min(i, 62)) - 1);
+            }
+            return max_nanos;
+        }
+    }
+}
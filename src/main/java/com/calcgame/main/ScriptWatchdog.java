@@ -0,0 +1,285 @@
+package com.calcgame.main;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.python.core.Py;
+import org.python.core.PyException;
+import org.python.core.PyFrame;
+import org.python.core.PyObject;
+import org.python.core.ThreadState;
+import org.python.core.TraceFunction;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Limits the time mod scripts may run for, so a slow or endless script can not freeze the game.<br>
+ * While a script with a time limit runs, a {@link TraceFunction} is installed in the Jython thread state of the thread running it,
+ * which Jython calls on every line and call of the script. The trace function compares {@link System#nanoTime()} to the
+ * script's deadline, and once it passed, raises {@code KeyboardInterrupt}, which aborts the script
+ * unless it catches every exception. The script then throws a {@link ScriptTimeoutException}, which makes the
+ * {@link Action} that ran it fail (see {@link Action#hasFailed()}). Every violation is logged and counted.<br>
+ * Tracing makes every line of a script slightly slower, so scripts without a limit are not traced at all. This is the default
+ * for operations and functions (see {@link ScriptWatchdog#formula_time_limit}), which are called many times per formula.
+ * Executing a script when it is loaded has it's own, larger limit (see {@link ScriptWatchdog#load(String, Runnable)}),
+ * as it may import modules.<br>
+ * Code that is not Python, like Java methods called by the script or {@link PyExpression}s, is not interrupted.
+ */
+public final class ScriptWatchdog {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    /**
+     * The time limit of buttons and listeners that do not have their own, in milliseconds, {@code 0} to not limit them
+     */
+    public static volatile long default_time_limit = 100;
+
+    /**
+     * The time limit of operations and functions that do not have their own, in milliseconds, {@code 0} to not limit them.
+     * Formulas are already limited between calls by {@link EvaluationBudget}, so a single call is not limited by default
+     */
+    public static volatile long formula_time_limit = 0;
+
+    /**
+     * The time limit of executing a script when it is loaded or prepared, in milliseconds, {@code 0} to not limit it
+     */
+    public static volatile long load_time_limit = 10_000;
+
+    /**
+     * The time limits of specific scripts in milliseconds, keyed by the id of the script
+     */
+    private static final Map<String, Long> time_limits = new ConcurrentHashMap<>();
+
+    /**
+     * The amount of times every script exceeded it's time limit, keyed by the id of the script
+     */
+    private static final Map<String, LongAdder> violations = new ConcurrentHashMap<>();
+
+    /**
+     * The trace function of every thread, reused for every script the thread runs
+     */
+    private static final ThreadLocal<Execution> executions = ThreadLocal.withInitial(Execution::new);
+
+    /**
+     * A private constructor to prevent accidental instantiations of this class
+     */
+    private ScriptWatchdog() {}
+
+    /**
+     * Sets the time limit of a specific script
+     * @param script the id of the script, e.g. {@code modid:button} or {@code modid:operation}
+     * @param millis the time limit in milliseconds, {@code 0} to not limit the script, or negative to use the default limit
+     */
+    @ForMods
+    public static void setTimeLimit(String script, long millis) {
+        if (millis < 0) time_limits.remove(script);
+        else time_limits.put(script, millis);
+    }
+
+    /**
+     * Returns the time limit of a button or listener script
+     * @param script the id of the script
+     * @return the time limit in milliseconds, {@code 0} if the script is not limited
+     */
+    public static long getTimeLimit(String script) {
+        return time_limits.getOrDefault(script, default_time_limit);
+    }
+
+    /**
+     * Returns the amount of times a script exceeded it's time limit
+     * @param script the id of the script
+     * @return the amount of violations
+     */
+    public static long getViolations(String script) {
+        LongAdder count = violations.get(script);
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * Returns the amount of times any script exceeded it's time limit
+     * @return the amount of violations
+     */
+    public static long getTotalViolations() {
+        return violations.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    /**
+     * Runs a button or listener script, aborting it if it exceeds it's time limit
+     * @param script the id of the script
+     * @param body the code that executes the script
+     * @throws ScriptTimeoutException if the script exceeded it's time limit
+     */
+    public static void run(String script, Runnable body) {
+        call(script, getTimeLimit(script), () -> {
+            body.run();
+            return null;
+        });
+    }
+
+    /**
+     * Executes a script when it is loaded or prepared, aborting it if it exceeds {@link ScriptWatchdog#load_time_limit}
+     * @param script the id of the script
+     * @param body the code that executes the script
+     * @throws ScriptTimeoutException if the script exceeded the time limit
+     */
+    public static void load(String script, Runnable body) {
+        call(script, load_time_limit, () -> {
+            body.run();
+            return null;
+        });
+    }
+
+    /**
+     * Calls the script of an operation or function, aborting it if it exceeds it's time limit
+     * @param script the id of the script
+     * @param body the code that calls the script
+     * @return the value returned by the body
+     * @param <T> the type of the value
+     * @throws ScriptTimeoutException if the script exceeded it's time limit
+     */
+    public static <T> T callInFormula(String script, Supplier<T> body) {
+        return call(script, time_limits.getOrDefault(script, formula_time_limit), body);
+    }
+
+    /**
+     * Runs a script that returns a value, aborting it if it exceeds the time limit.
+     * A script started by another script that is already limited runs within the limit of the other script
+     * @param script the id of the script
+     * @param limit the time limit in milliseconds, {@code 0} to not limit the script
+     * @param body the code that executes the script
+     * @return the value returned by the body
+     * @param <T> the type of the value
+     * @throws ScriptTimeoutException if the script exceeded the time limit
+     */
+    private static <T> T call(String script, long limit, Supplier<T> body) {
+        if (limit <= 0) return body.get();
+        Execution execution = executions.get();
+        if (execution.script != null) return body.get();
+        ThreadState thread_state = Py.getThreadState();
+        TraceFunction previous = thread_state.tracefunc;
+        execution.start(script, limit);
+        thread_state.tracefunc = execution;
+        try {
+            T value = body.get();
+            if (execution.expired) throw new ScriptTimeoutException(script, limit, null);
+            return value;
+        } catch (RuntimeException e) {
+            if (execution.expired && !(e instanceof ScriptTimeoutException)) throw new ScriptTimeoutException(script, limit, e);
+            throw e;
+        } finally {
+            execution.stop();
+            thread_state.tracefunc = previous;
+        }
+    }
+
+    /**
+     * The script running on a thread, which is also the trace function that aborts it
+     */
+    private static class Execution extends TraceFunction {
+        /**
+         * The id of the running script, or {@code null} if no limited script is running
+         */
+        private String script;
+
+        /**
+         * The time limit of the script in milliseconds
+         */
+        private long limit;
+
+        /**
+         * The value of {@link System#nanoTime()} after which the script is aborted
+         */
+        private long deadline;
+
+        /**
+         * Whether the script exceeded it's time limit
+         */
+        private boolean expired;
+
+        /**
+         * Starts limiting a script
+         * @param script the id of the script
+         * @param limit the time limit of the script in milliseconds
+         */
+        void start(String script, long limit) {
+            this.script = script;
+            this.limit = limit;
+            this.deadline = System.nanoTime() + limit * 1_000_000;
+            this.expired = false;
+        }
+
+        /**
+         * Stops limiting the script, after it returned
+         */
+        void stop() {
+            script = null;
+        }
+
+        /**
+         * Aborts the script if it's deadline passed, counting the violation the first time
+         * @throws PyException a {@code KeyboardInterrupt}, if the script expired
+         */
+        private void check() {
+            if (script == null) return;
+            if (!expired) {
+                if (System.nanoTime() - deadline <= 0) return;
+                expired = true;
+                violations.computeIfAbsent(script, (ignored) -> new LongAdder()).increment();
+                LOGGER.warn("Script '{}' exceeded it's time limit of {} ms, aborting it ({} violations so far)", script, limit, getViolations(script));
+            }
+            throw Py.KeyboardInterrupt("Script '%s' exceeded it's time limit of %d ms".formatted(script, limit));
+        }
+
+        @Override
+        public TraceFunction traceCall(PyFrame frame) {
+            check();
+            return this;
+        }
+
+        @Override
+        public TraceFunction traceReturn(PyFrame frame, PyObject ret) {
+            return this;
+        }
+
+        @Override
+        public TraceFunction traceLine(PyFrame frame, int line) {
+            check();
+            return this;
+        }
+
+        @Override
+        public TraceFunction traceException(PyFrame frame, PyException exc) {
+            return this;
+        }
+    }
+
+    /**
+     * Thrown when a script was aborted, because it exceeded it's time limit
+     */
+    public static class ScriptTimeoutException extends RuntimeException {
+        /**
+         * The id of the script
+         */
+        private final String script;
+
+        /**
+         * Constructs a new exception
+         * @param script the id of the script
+         * @param limit the time limit of the script in milliseconds
+         * @param cause the exception the script was aborted with, or {@code null}
+         */
+        public ScriptTimeoutException(String script, long limit, Throwable cause) {
+            super("Script '%s' exceeded it's time limit of %d ms".formatted(script, limit), cause);
+            this.script = script;
+        }
+
+        /**
+         * Returns the id of the script that was aborted
+         * @return the id of the script
+         */
+        public String getScript() {
+            return script;
+        }
+    }
+}
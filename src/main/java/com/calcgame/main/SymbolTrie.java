@@ -0,0 +1,184 @@
+package com.calcgame.main;
+
+import com.calcgame.main.buttons.CalculateButton;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.UnaryOperator;
+
+/**
+ * An immutable trie of the symbols of all operations and names of all functions, used by {@link FormulaParser} to find them.<br>
+ * The trie is a deterministic automaton: the parser starts in {@link SymbolTrie#ROOT} and calls {@link SymbolTrie#step(int, char)}
+ * for every character, which follows a single transition, until there is none. Every state that a symbol ends in knows the
+ * operation or function, so the longest symbol at some position is found in a single scan, without creating a string
+ * or looking up a map, and symbols may be longer than one character. The cost of a step only depends on the
+ * amount of symbols that share a prefix, not on the amount of symbols.<br>
+ * The trie is built by {@link CalculateButton#getSymbols()} from the current operations and functions,
+ * and built again after an operation or function is added.
+ */
+public class SymbolTrie {
+    /**
+     * The state the automaton starts in, before any character was read
+     */
+    public static final int ROOT = 0;
+
+    /**
+     * The characters every state has a transition on, sorted
+     */
+    protected final char[][] labels;
+
+    /**
+     * The state every transition leads to, in the same order as {@link SymbolTrie#labels}
+     */
+    protected final int[][] targets;
+
+    /**
+     * The operation whose symbol ends in every state, or {@code null}
+     */
+    protected final Operation[] operations;
+
+    /**
+     * The function whose name ends in every state, or {@code null}
+     */
+    protected final UnaryOperator<Complex>[] functions;
+
+    /**
+     * Constructs a trie from it's states, use {@link SymbolTrie#build(Map, Map)} instead
+     * @param labels the characters every state has a transition on
+     * @param targets the state every transition leads to
+     * @param operations the operation whose symbol ends in every state
+     * @param functions the function whose name ends in every state
+     */
+    private SymbolTrie(char[][] labels, int[][] targets, Operation[] operations, UnaryOperator<Complex>[] functions) {
+        this.labels = labels;
+        this.targets = targets;
+        this.operations = operations;
+        this.functions = functions;
+    }
+
+    /**
+     * Builds a trie from the specified operations and functions
+     * @param ops the operations, keyed by their symbols
+     * @param funcs the functions, keyed by their names
+     * @return the trie
+     */
+    @SuppressWarnings("unchecked")
+    public static SymbolTrie build(Map<String, Operation> ops, Map<String, UnaryOperator<Complex>> funcs) {
+        List<TreeMap<Character, Integer>> children = new ArrayList<>();
+        List<Operation> operations = new ArrayList<>();
+        List<UnaryOperator<Complex>> functions = new ArrayList<>();
+        children.add(new TreeMap<>());
+        operations.add(null);
+        functions.add(null);
+        for (Map.Entry<String, Operation> entry : ops.entrySet()) {
+            int state = insert(entry.getKey(), children, operations, functions);
+            operations.set(state, entry.getValue());
+        }
+        for (Map.Entry<String, UnaryOperator<Complex>> entry : funcs.entrySet()) {
+            int state = insert(entry.getKey(), children, operations, functions);
+            functions.set(state, entry.getValue());
+        }
+        int size = children.size();
+        char[][] labels = new char[size][];
+        int[][] targets = new int[size][];
+        for (int state = 0; state < size; state++) {
+            TreeMap<Character, Integer> transitions = children.get(state);
+            labels[state] = new char[transitions.size()];
+            targets[state] = new int[transitions.size()];
+            int i = 0;
+            for (Map.Entry<Character, Integer> transition : transitions.entrySet()) {
+                labels[state][i] = transition.getKey();
+                targets[state][i++] = transition.getValue();
+            }
+        }
+        return new SymbolTrie(labels, targets, operations.toArray(new Operation[0]), functions.toArray(new UnaryOperator[0]));
+    }
+
+    /**
+     * Adds the states for a symbol to a trie that is being built
+     * @param symbol the symbol to add
+     * @param children the transitions of every state
+     * @param operations the operation of every state
+     * @param functions the function of every state
+     * @return the state the symbol ends in
+     */
+    private static int insert(String symbol, List<TreeMap<Character, Integer>> children,
+                              List<Operation> operations, List<UnaryOperator<Complex>> functions) {
+        int state = ROOT;
+        for (int i = 0; i < symbol.length(); i++) {
+            Integer next = children.get(state).get(symbol.charAt(i));
+            if (next == null) {
+                next = children.size();
+                children.get(state).put(symbol.charAt(i), next);
+                children.add(new TreeMap<>());
+                operations.add(null);
+                functions.add(null);
+            }
+            state = next;
+        }
+        return state;
+    }
+
+    /**
+     * Follows the transition from a state on a character
+     * @param state the current state
+     * @param c the next character
+     * @return the next state, or {@code -1} if no symbol continues with this character
+     */
+    public int step(int state, char c) {
+        char[] label = labels[state];
+        int i = label.length < 8 ? indexOf(label, c) : Arrays.binarySearch(label, c);
+        return i < 0 ? -1 : targets[state][i];
+    }
+
+    /**
+     * Returns whether any symbol continues after the characters read so far, so the parser knows
+     * whether it has to look at the next character
+     * @param state the current state
+     * @return whether the state has any transitions
+     */
+    public boolean hasTransitions(int state) {
+        return labels[state].length > 0;
+    }
+
+    /**
+     * Finds a character in a short array, which is faster than a binary search
+     * @param label the array to search in
+     * @param c the character to find
+     * @return the index of the character, or {@code -1} if it is not in the array
+     */
+    private static int indexOf(char[] label, char c) {
+        for (int i = 0; i < label.length; i++) if (label[i] == c) return i;
+        return -1;
+    }
+
+    /**
+     * Returns the operation whose symbol ends in the specified state
+     * @param state the state
+     * @return the operation, or {@code null} if no operation has the characters read so far as it's symbol
+     */
+    public @Nullable Operation getOperation(int state) {
+        return operations[state];
+    }
+
+    /**
+     * Returns the function whose name ends in the specified state
+     * @param state the state
+     * @return the function, or {@code null} if no function has the characters read so far as it's name
+     */
+    public @Nullable UnaryOperator<Complex> getFunction(int state) {
+        return functions[state];
+    }
+
+    /**
+     * Returns the amount of states in this trie
+     * @return the amount of states
+     */
+    public int countStates() {
+        return labels.length;
+    }
+}
@@ -4,10 +4,14 @@ import com.calcgame.main.rendering.Triangle;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.joml.Rectanglef;
 import org.joml.Vector3f;
 import org.json.JSONObject;
+import org.python.core.CompileMode;
+import org.python.core.PyCode;
 import org.python.core.PyComplex;
+import org.python.core.PyException;
 import org.python.core.PyObject;
 import org.python.util.PythonInterpreter;
 
@@ -71,32 +75,52 @@ public class Utils {
         return script.contains("def %s(".formatted(func_name));
     }
 
+    /**
+     * Compiles a Python script once, so it can be executed or evaluated any amount of times without parsing it again.
+     * Scripts that were compiled on a previous launch are loaded from the {@link ScriptCache}
+     * @param script the Python script
+     * @param filename the name of the script shown in errors and tracebacks
+     * @param mode {@link CompileMode#exec} for a script of statements, or {@link CompileMode#eval} for a single expression
+     * @param out the logger to report a syntax error to
+     * @return the compiled script, or {@code null} if it is not valid Python
+     */
+    public static @Nullable PyCode compilePy(String script, String filename, CompileMode mode, Logger out) {
+        try {
+            return ScriptCache.compile(script, filename, mode);
+        } catch (PyException e) {
+            out.error("Unable to compile Python script '{}': {}", filename, e);
+            return null;
+        }
+    }
+
     /**
      * Generates a function from the specified python script and function name.
-     * @param py the PythonInterpreter to use
+     * The script has to be executed in the interpreter before, so the function is already defined in it.
+     * @param py the PythonInterpreter the script was executed in, may be {@code null} if the script does not define any functions
+     * @param id the id of the script, used to limit the time the function may run for, see {@link ScriptWatchdog}
      * @param script the Python script, from which to get the function
      * @param func_name the name of the function
      * @param out the logger, to which the function will output
      * @return a java function, that is equivalent to the specified function in python, or null if the provided script does not define it
      * @param <T> the type of the function's first and only argument
      */
-    public static <T> Consumer<T> funcFromPy(PythonInterpreter py, String script, String func_name, Logger out) {
+    public static <T> Consumer<T> funcFromPy(@Nullable PythonInterpreter py, String id, String script, String func_name, Logger out) {
         if (!pyDefinesFunction(script, func_name)) {
             return null;
         }
-        py.setOut(writerFromLogger(out));
-        py.exec(script);
-        PyObject func = py.get(func_name);
-        return (x) -> {
-            py.setOut(writerFromLogger(out));
-            py.set("__arg", x);
-            func.__call__(py.get("__arg"));
-        };
+        PyObject func = py == null ? null : PyBridge.getCallable(py, func_name);
+        if (func == null) {
+            out.warn("Python function '{}' was not defined by executing it's script", func_name);
+            return null;
+        }
+        return PyBridge.consumer(id, func, PyBridge.output(out));
     }
 
     /**
      * Generates an action object from the specified python script and name.
-     * @param py the python interpreter to use
+     * The script has to be executed in the interpreter before, see {@link Utils#funcFromPy(PythonInterpreter, String, String, String, Logger)}
+     * @param py the python interpreter the script was executed in, may be {@code null} if the script does not define any functions
+     * @param id the id of the script, used to limit the time the functions may run for (see {@link ScriptWatchdog}) and to profile them (see {@link ScriptProfiler})
      * @param script the python script from which to get the functions
      * @param name the name of the function for {@code redo}
      * @param out the logger to use for the python functions to output
@@ -104,21 +128,23 @@ public class Utils {
      * @param fallback_undo the undo function to use if the python function was not defined
      * @return an action object, that has a python function with the name {@code name} as {@link Action#redo()}, and a function with name {@code name + "_rev"} as {@link Action#undoInternal()}
      */
-    public static Action actionFromPy(PythonInterpreter py, String script, String name, Logger out, Consumer<ActionContext> fallback_redo, Consumer<ActionContext> fallback_undo) {
-        Consumer<ActionContext> redo = funcFromPy(py, script, name, out);
-        Consumer<ActionContext> undo = funcFromPy(py, script, name + "_rev", out);
+    public static Action actionFromPy(@Nullable PythonInterpreter py, String id, String script, String name, Logger out, Consumer<ActionContext> fallback_redo, Consumer<ActionContext> fallback_undo) {
+        Consumer<ActionContext> redo = funcFromPy(py, id, script, name, out);
+        Consumer<ActionContext> undo = funcFromPy(py, id, script, name + "_rev", out);
+        String redo_key = "%s.%s".formatted(id, name);
+        String undo_key = redo_key + "_rev";
         return new Action("py_" + name) {
             @Override
             protected void redoInternal() {
-                if (redo != null) redo.accept(getContext());
-                else if (fallback_redo != null) fallback_redo.accept(getContext());
+                if (redo != null) ScriptProfiler.profile(redo_key, () -> redo.accept(getContext()));
+                else if (fallback_redo != null) ScriptProfiler.profile(redo_key, () -> fallback_redo.accept(getContext()));
                 else out.debug("Neither redo or fallback_redo are callable in action {}", name);
             }
 
             @Override
             protected void undoInternal() {
-                if (undo != null) undo.accept(getContext());
-                else if (fallback_undo != null) fallback_undo.accept(getContext());
+                if (undo != null) ScriptProfiler.profile(undo_key, () -> undo.accept(getContext()));
+                else if (fallback_undo != null) ScriptProfiler.profile(undo_key, () -> fallback_undo.accept(getContext()));
                 else out.debug("Neither undo or fallback_undo are callable in action {}", name);
             }
 
@@ -131,16 +157,17 @@ public class Utils {
 
     /**
      * Generates an action object from the specified python script and name.
-     * Equivalent to using {@link Utils#actionFromPy(PythonInterpreter, String, String, Logger, Consumer, Consumer)} with the last two arguments as {@code null}
-     * @param py the python interpreter to use
+     * Equivalent to using {@link Utils#actionFromPy(PythonInterpreter, String, String, String, Logger, Consumer, Consumer)} with the last two arguments as {@code null}
+     * @param py the python interpreter the script was executed in
+     * @param id the id of the script, used to limit the time the functions may run for (see {@link ScriptWatchdog}) and to profile them (see {@link ScriptProfiler})
      * @param script the python script from which to get the functions
      * @param name the name of the function for {@code redo}
      * @param out the logger to use for the python functions to output
      * @return an action object, that has a python function with the name {@code name} as {@link Action#redo()}, and a function with name {@code name + "_rev"} as {@link Action#undoInternal()}
      */
     @SuppressWarnings("unused")
-    public static Action actionFromPy(PythonInterpreter py, String script, String name, Logger out) {
-        return actionFromPy(py, script, name, out, null, null);
+    public static Action actionFromPy(PythonInterpreter py, String id, String script, String name, Logger out) {
+        return actionFromPy(py, id, script, name, out, null, null);
     }
 
     /**
@@ -0,0 +1,103 @@
+package com.calcgame.main.buttons;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * A queue of buttons that are prepared (see {@link CalcButton#prepare()}) on a background thread.<br>
+ * Buttons are created by {@link CalcButton#newButton(java.util.List, String)} without compiling their scripts,
+ * so loading mods with many buttons is fast. All loaded buttons are queued after loading,
+ * and a button that is rendered is moved to the front of the queue, so it is usually prepared
+ * before it is clicked. A button that is used before the queue reaches it is prepared by the thread that uses it.<br>
+ * Preparing must not run mod code, as it happens off the game thread. E.g. {@link FuncButton} only compiles it's scripts here,
+ * and executes them on the game thread when it is first added or clicked.
+ */
+public final class ButtonPreparer {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    /**
+     * The buttons that are waiting to be prepared, a button may be in it more than once
+     */
+    private static final BlockingDeque<CalcButton> queue = new LinkedBlockingDeque<>();
+
+    /**
+     * The buttons that were moved to the front of the queue and not taken from it yet,
+     * so a button that is rendered every frame is only added to the front once
+     */
+    private static final Set<CalcButton> prioritized = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The thread that prepares the buttons, or {@code null} if nothing was queued yet
+     */
+    private static Thread thread;
+
+    /**
+     * A private constructor to prevent accidental instantiations of this class
+     */
+    private ButtonPreparer() {}
+
+    /**
+     * Adds a button to the end of the queue
+     * @param button the button to prepare
+     */
+    public static void enqueue(CalcButton button) {
+        queue.offerLast(button);
+        start();
+    }
+
+    /**
+     * Adds a button to the front of the queue, so it is prepared before the buttons that are already queued.
+     * Does nothing if the button was already added to the front and not prepared yet
+     * @param button the button to prepare
+     */
+    public static void prioritize(CalcButton button) {
+        if (!prioritized.add(button)) return;
+        queue.offerFirst(button);
+        start();
+    }
+
+    /**
+     * Returns the amount of buttons waiting to be prepared
+     * @return the length of the queue
+     */
+    public static int size() {
+        return queue.size();
+    }
+
+    /**
+     * Starts the background thread, if it was not started yet
+     */
+    private static synchronized void start() {
+        if (thread != null) return;
+        thread = new Thread(ButtonPreparer::run, "ButtonPreparer");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Prepares the queued buttons one by one, until the thread is interrupted
+     */
+    private static void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            CalcButton button;
+            try {
+                button = queue.take();
+                prioritized.remove(button);
+            } catch (InterruptedException e) {
+                LOGGER.debug("Button preparer was interrupted");
+                return;
+            }
+            try {
+                button.prepare();
+            } catch (RuntimeException e) {
+                LOGGER.error("Failed to prepare button '{}'", button.getString(), e);
+            }
+        }
+    }
+}
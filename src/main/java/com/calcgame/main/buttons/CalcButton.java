@@ -70,6 +70,13 @@ public interface CalcButton {
      */
     CalcButton newButton(List<String> args, String mod_id);
 
+    /**
+     * Should finish creating the button, if {@link CalcButton#newButton(List, String)} deferred anything expensive,
+     * like compiling scripts. Invoked before the button is first added or clicked, and possibly before that
+     * on a background thread by {@link ButtonPreparer}, so it has to be thread-safe and do nothing if invoked again
+     */
+    default void prepare() {}
+
     /**
      * Returns the id of the button, set when invoking {@link CalcButton#newButton(List, String)}
      * @return the id of the button
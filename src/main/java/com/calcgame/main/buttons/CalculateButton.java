@@ -1,17 +1,18 @@
 package com.calcgame.main.buttons;
 
-import com.calcgame.main.Action;
-import com.calcgame.main.Formula;
-import com.calcgame.main.Operation;
+import com.calcgame.main.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.python.core.PyComplex;
-import com.calcgame.main.GameState;
+import org.jetbrains.annotations.Nullable;
+import org.python.core.PyObject;
 
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.function.BiFunction;
-import java.util.function.Function;
+import java.util.Set;
+import java.util.function.BinaryOperator;
+import java.util.function.UnaryOperator;
 
 /**
  * A system button that evaluates the expression on screen
@@ -34,11 +35,131 @@ public class CalculateButton extends FuncButton {
     /**
      * A map for lookup of functions when parsing expressions
      */
-    public static Map<String, Function<PyComplex, PyComplex>> funcs = new HashMap<>();
+    public static Map<String, UnaryOperator<Complex>> funcs = new HashMap<>();
     /**
      * A map for reverse lookup of functions when parsing expressions
      */
-    public static Map<Function<PyComplex, PyComplex>, String> rev_funcs = new HashMap<>();
+    public static Map<UnaryOperator<Complex>, String> rev_funcs = new HashMap<>();
+
+    /**
+     * The cost of evaluating each operation, keyed by it's symbol, used to limit how much work evaluating a formula may take
+     * @see EvaluationBudget
+     */
+    public static Map<String, Integer> op_costs = new HashMap<>();
+
+    /**
+     * The cost of evaluating each function, keyed by it's name
+     * @see EvaluationBudget
+     */
+    public static Map<String, Integer> func_costs = new HashMap<>();
+
+    /**
+     * The symbols of the operations a mod declared pure, i.e. their result only depends on their operands
+     * and evaluating them has no side effects
+     */
+    public static Set<String> pure_ops = new HashSet<>();
+
+    /**
+     * The names of the functions a mod declared pure
+     * @see CalculateButton#pure_ops
+     */
+    public static Set<String> pure_funcs = new HashSet<>();
+
+    /**
+     * The amount of results remembered for every pure operation implemented by a mod script, keyed by it's symbol
+     * @see ResultCache
+     */
+    public static Map<String, Integer> op_cache_sizes = new HashMap<>();
+
+    /**
+     * The amount of results remembered for every pure function implemented by a mod script, keyed by it's name
+     * @see ResultCache
+     */
+    public static Map<String, Integer> func_cache_sizes = new HashMap<>();
+
+    /**
+     * The symbols of the operations a mod declared thread-safe, i.e. they may be evaluated by several threads at once
+     */
+    public static Set<String> thread_safe_ops = new HashSet<>();
+
+    /**
+     * The names of the functions a mod declared thread-safe
+     * @see CalculateButton#thread_safe_ops
+     */
+    public static Set<String> thread_safe_funcs = new HashSet<>();
+
+    /**
+     * The smallest estimated cost of a formula that is evaluated in parallel when this button is clicked
+     * (see {@link ParallelFormula}), or {@code 0} to never evaluate in parallel. May be changed by a mod's {@code config.json}
+     */
+    public static long parallel_threshold = 0;
+
+    /**
+     * The cost of an operation or function implemented in Java, if it's cost was not set
+     */
+    public static final int DEFAULT_INTRINSIC_COST = 1;
+
+    /**
+     * The cost of an operation or function implemented by a mod script, if it's cost was not set
+     */
+    public static final int DEFAULT_SCRIPT_COST = 100;
+
+    /**
+     * The maximum total cost of evaluating a formula when this button is clicked, may be changed by a mod's {@code config.json}
+     */
+    public static long evaluation_budget = 1_000_000;
+
+    /**
+     * The maximum time in milliseconds evaluating a formula may take when this button is clicked,
+     * may be changed by a mod's {@code config.json}
+     */
+    public static long evaluation_time_limit = 250;
+
+    /**
+     * The amount of times an operation or function was added, used to detect that previously parsed formulas are outdated
+     */
+    private static int tables_version = 0;
+
+    /**
+     * The trie of the current operations and functions, or {@code null} if it has to be built again
+     * @see CalculateButton#getSymbols()
+     */
+    private static volatile @Nullable SymbolTrie symbols = null;
+
+    /**
+     * The maximum amount of screens that are remembered in {@link CalculateButton#cache}
+     */
+    public static final int CACHE_SIZE = 4096;
+
+    /**
+     * The parsed and evaluated formulas of recently calculated screens, keyed by the screen text.
+     * The evaluation is only reused if the formula is memoizable (see {@link Formula#isMemoizable()}),
+     * otherwise only the parsed formula is reused, and it is evaluated again.
+     * The least recently used entry is removed when the cache grows larger than {@link CalculateButton#CACHE_SIZE},
+     * and the whole cache is cleared when an operation or function is added. Only accessed while synchronized on itself.
+     */
+    private static final Map<String, CachedFormula> cache = new LinkedHashMap<>(16, .75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedFormula> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * The amount of times a screen was found in {@link CalculateButton#cache}
+     */
+    private static long cache_hits = 0;
+
+    /**
+     * The amount of times a screen was not found in {@link CalculateButton#cache}
+     */
+    private static long cache_misses = 0;
+
+    /**
+     * The amount of times {@link CalculateButton#cache} was cleared,
+     * used to avoid caching a formula that was parsed before an operation or function was added
+     */
+    private static int cache_generation = 0;
 
     /**
      * Constructs the button that evaluates the expression on screen when clicked
@@ -53,11 +174,11 @@ public class CalculateButton extends FuncButton {
     public void onClick(GameState state, Properties properties) {
         String s = state.getScreen();
         try {
-            Formula f = Formula.fromString(s);
-            LOGGER.info("Parsed formula: {}", f.toString(state));
-            PyComplex res = f.calc();
-            String res_str = state.numToString(res);
-            int op_count = f.countOperations();
+            Formula.Evaluation evaluation = getCached(s, state).evaluation();
+            LOGGER.info("Parsed formula: {}", evaluation.string());
+            assert evaluation.value() != null;
+            String res_str = state.numToString(evaluation.value());
+            int op_count = evaluation.operations();
             state.doAction(new Action("calcOnClick") {
                 @Override
                 protected void redoInternal() {
@@ -82,30 +203,390 @@ public class CalculateButton extends FuncButton {
         }
     }
 
+    /**
+     * Returns the parsed and evaluated formula on the specified screen, parsing and evaluating it only if it is not cached.
+     * The formula is evaluated exactly if possible (see {@link Formula#calcExact()}), in parallel if it is more expensive
+     * than {@link CalculateButton#parallel_threshold}, and optimized otherwise.
+     * A cached formula that is evaluated again, because it is not memoizable, is compiled (see {@link Formula#compile()}),
+     * as it is likely to be evaluated many more times. A compiled formula charges the budget before every operation and function, like any other.
+     * Evaluation is limited by {@link CalculateButton#evaluation_budget} and {@link CalculateButton#evaluation_time_limit}.
+     * Formulas that use impure operations or functions are evaluated again every time, only their parsed formula is reused.
+     * Formulas that fail to parse or evaluate are not cached.
+     * @param screen the text on the screen
+     * @param state the state to use to stringify numbers
+     * @return the parsed formula and the result of evaluating it
+     * @throws Formula.InvalidFormulaException if the screen is not a valid formula, it cannot be evaluated or evaluating it is too expensive
+     */
+    public static CachedFormula getCached(String screen, GameState state) throws Formula.InvalidFormulaException {
+        int generation;
+        CachedFormula cached;
+        synchronized (cache) {
+            generation = cache_generation;
+            cached = cache.get(screen);
+            if (cached != null) cache_hits++;
+            else cache_misses++;
+        }
+        if (cached != null && cached.formula().isMemoizable()) return cached;
+        Formula f = cached != null ? cached.formula() : screen.equals(state.getScreen()) ? state.getScreenFormula() : Formula.fromString(screen);
+        EvaluationBudget budget = EvaluationBudget.standard();
+        long cost = f.estimateCost();
+        budget.check(cost);
+        boolean parallel = parallel_threshold > 0 && cost >= parallel_threshold;
+        CompiledFormula compiled = cached == null || parallel ? null : cached.compiled() != null ? cached.compiled() : compile(f);
+        Rational exact = compiled == null ? f.calcExact() : null;
+        Formula.Evaluation evaluation;
+        if (exact != null) evaluation = new Formula.Evaluation(exact.toComplex(), f.countOperations(), f.toString(state));
+        else if (parallel)
+            evaluation = new Formula.Evaluation(f.parallelize(parallel_threshold).calc(Map.of(), budget), f.countOperations(), f.toString(state));
+        else if (compiled != null)
+            evaluation = new Formula.Evaluation(compiled.calc(Map.of(), budget), compiled.countOperations(), f.toString(state));
+        else evaluation = f.optimize(budget).evaluate(Map.of(), state, budget);
+        cached = new CachedFormula(f, exact, evaluation, compiled);
+        synchronized (cache) {
+            if (generation == cache_generation) cache.put(screen, cached);
+        }
+        return cached;
+    }
+
+    /**
+     * Compiles a formula that is evaluated again
+     * @param f the formula to compile
+     * @return the compiled formula, or {@code null} if it could not be compiled, e.g. because it is too deep
+     */
+    private static @Nullable CompiledFormula compile(Formula f) {
+        try {
+            return f.compile();
+        } catch (Formula.InvalidFormulaException e) {
+            LOGGER.debug("Unable to compile formula, evaluating it without compiling: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the amount of times a formula was found in the cache
+     * @return the amount of cache hits since the game started
+     * @see CalculateButton#getCached(String, GameState)
+     */
+    public static long getCacheHits() {
+        synchronized (cache) {
+            return cache_hits;
+        }
+    }
+
+    /**
+     * Returns the amount of times a formula had to be parsed and evaluated because it was not in the cache
+     * @return the amount of cache misses since the game started
+     * @see CalculateButton#getCached(String, GameState)
+     */
+    public static long getCacheMisses() {
+        synchronized (cache) {
+            return cache_misses;
+        }
+    }
+
+    /**
+     * Removes all formulas from the cache, called when an operation or function is added,
+     * as the same screen may now be parsed or evaluated differently
+     */
+    public static void clearCache() {
+        synchronized (cache) {
+            cache.clear();
+            cache_generation++;
+        }
+    }
+
+    /**
+     * Returns the cost of evaluating an operation
+     * @param op the operation
+     * @return the cost set using {@link CalculateButton#setOperationCost(String, int)}, or the default cost
+     */
+    public static int getCost(Operation op) {
+        Integer cost = op_costs.get(rev_ops.get(op));
+        if (cost != null) return cost;
+        return Intrinsics.isIntrinsic(op) ? DEFAULT_INTRINSIC_COST : DEFAULT_SCRIPT_COST;
+    }
+
+    /**
+     * Returns the cost of evaluating a function
+     * @param f the function
+     * @return the cost set using {@link CalculateButton#setFunctionCost(String, int)}, or the default cost
+     */
+    public static int getCost(UnaryOperator<Complex> f) {
+        Integer cost = func_costs.get(rev_funcs.get(f));
+        if (cost != null) return cost;
+        return Intrinsics.isIntrinsic(f) ? DEFAULT_INTRINSIC_COST : DEFAULT_SCRIPT_COST;
+    }
+
+    /**
+     * Sets the cost of evaluating an operation
+     * @param s the symbol of the operation
+     * @param cost the cost
+     */
+    @ForMods
+    public static void setOperationCost(String s, int cost) {
+        op_costs.put(s, cost);
+    }
+
+    /**
+     * Sets the cost of evaluating a function
+     * @param s the function name
+     * @param cost the cost
+     */
+    @ForMods
+    public static void setFunctionCost(String s, int cost) {
+        func_costs.put(s, cost);
+    }
+
+    /**
+     * Returns whether an operation is pure, which is always the case for operations implemented in Java
+     * @param op the operation
+     * @return whether the operation is implemented in Java or was declared pure using {@link CalculateButton#setOperationPure(String, boolean)}
+     */
+    public static boolean isPure(Operation op) {
+        return Intrinsics.isIntrinsic(op) || pure_ops.contains(rev_ops.get(op));
+    }
+
+    /**
+     * Returns whether a function is pure, which is always the case for functions implemented in Java
+     * @param f the function
+     * @return whether the function is implemented in Java or was declared pure using {@link CalculateButton#setFunctionPure(String, boolean)}
+     */
+    public static boolean isPure(UnaryOperator<Complex> f) {
+        return Intrinsics.isIntrinsic(f) || pure_funcs.contains(rev_funcs.get(f));
+    }
+
+    /**
+     * Returns whether an operation may be evaluated by several threads at once, which is always the case for operations implemented in Java
+     * @param op the operation
+     * @return whether the operation is implemented in Java or was declared thread-safe using {@link CalculateButton#setOperationThreadSafe(String, boolean)}
+     */
+    public static boolean isThreadSafe(Operation op) {
+        return Intrinsics.isIntrinsic(op) || thread_safe_ops.contains(rev_ops.get(op));
+    }
+
+    /**
+     * Returns whether a function may be evaluated by several threads at once, which is always the case for functions implemented in Java
+     * @param f the function
+     * @return whether the function is implemented in Java or was declared thread-safe using {@link CalculateButton#setFunctionThreadSafe(String, boolean)}
+     */
+    public static boolean isThreadSafe(UnaryOperator<Complex> f) {
+        return Intrinsics.isIntrinsic(f) || thread_safe_funcs.contains(rev_funcs.get(f));
+    }
+
+    /**
+     * Declares whether an operation is pure.
+     * A pure operation implemented by a mod script remembers it's last {@link ResultCache#DEFAULT_SIZE} results.
+     * @param s the symbol of the operation
+     * @param pure whether the operation is pure
+     * @see CalculateButton#pure_ops
+     */
+    @ForMods
+    public static void setOperationPure(String s, boolean pure) {
+        if (pure) setOperationPure(s, ResultCache.DEFAULT_SIZE);
+        else {
+            pure_ops.remove(s);
+            op_cache_sizes.remove(s);
+            readdOperation(s);
+        }
+    }
+
+    /**
+     * Declares an operation pure, and sets the amount of results it remembers if it is implemented by a mod script.
+     * If the operation was already added, it is added again with a new cache.
+     * @param s the symbol of the operation
+     * @param cache_size the amount of results to remember, or {@code 0} to not remember any
+     * @see ResultCache
+     */
+    @ForMods
+    public static void setOperationPure(String s, int cache_size) {
+        pure_ops.add(s);
+        op_cache_sizes.put(s, cache_size);
+        readdOperation(s);
+    }
+
+    /**
+     * Adds an operation again after it was declared pure or impure, if it was already added.
+     * Formulas parsed before remember whether they are {@link Formula#isMemoizable()} and possibly their value,
+     * so the interned formulas and the cached screens are discarded, and the operation gets a new identity
+     * @param s the symbol of the operation
+     */
+    private static void readdOperation(String s) {
+        Formula.clearInterned();
+        Operation op = ops.get(s);
+        if (op != null) addOperation(s, op.priority(), op.f(), op.code());
+    }
+
+    /**
+     * Declares whether a function is pure.
+     * A pure function implemented by a mod script remembers it's last {@link ResultCache#DEFAULT_SIZE} results.
+     * @param s the function name
+     * @param pure whether the function is pure
+     * @see CalculateButton#pure_funcs
+     */
+    @ForMods
+    public static void setFunctionPure(String s, boolean pure) {
+        if (pure) setFunctionPure(s, ResultCache.DEFAULT_SIZE);
+        else {
+            pure_funcs.remove(s);
+            func_cache_sizes.remove(s);
+            readdFunction(s);
+        }
+    }
+
+    /**
+     * Declares a function pure, and sets the amount of results it remembers if it is implemented by a mod script.
+     * If the function was already added, it is added again with a new cache.
+     * @param s the function name
+     * @param cache_size the amount of results to remember, or {@code 0} to not remember any
+     * @see ResultCache
+     */
+    @ForMods
+    public static void setFunctionPure(String s, int cache_size) {
+        pure_funcs.add(s);
+        func_cache_sizes.put(s, cache_size);
+        readdFunction(s);
+    }
+
+    /**
+     * Adds a function again after it was declared pure or impure, if it was already added
+     * @param s the function name
+     * @see CalculateButton#readdOperation(String)
+     */
+    private static void readdFunction(String s) {
+        Formula.clearInterned();
+        UnaryOperator<Complex> f = funcs.get(s);
+        if (f != null) addFunction(s, f);
+    }
+
+    /**
+     * Declares whether an operation may be evaluated by several threads at once
+     * @param s the symbol of the operation
+     * @param thread_safe whether the operation is thread-safe
+     * @see CalculateButton#thread_safe_ops
+     */
+    @ForMods
+    public static void setOperationThreadSafe(String s, boolean thread_safe) {
+        if (thread_safe) thread_safe_ops.add(s);
+        else thread_safe_ops.remove(s);
+    }
+
+    /**
+     * Declares whether a function may be evaluated by several threads at once
+     * @param s the function name
+     * @param thread_safe whether the function is thread-safe
+     * @see CalculateButton#thread_safe_funcs
+     */
+    @ForMods
+    public static void setFunctionThreadSafe(String s, boolean thread_safe) {
+        if (thread_safe) thread_safe_funcs.add(s);
+        else thread_safe_funcs.remove(s);
+    }
+
+    /**
+     * Returns a number that changes every time an operation or function is added
+     * @return the current version of the operation and function tables
+     */
+    public static int getTablesVersion() {
+        return tables_version;
+    }
+
+    /**
+     * Returns the trie used to find operations and functions when parsing a formula,
+     * building it if an operation or function was added since it was last built
+     * @return the trie of the current operations and functions
+     */
+    public static SymbolTrie getSymbols() {
+        SymbolTrie trie = symbols;
+        if (trie == null) symbols = trie = SymbolTrie.build(ops, funcs);
+        return trie;
+    }
+
     /**
      * Adds an operation to use when parsing a formula
      * @param s the symbol of the operation
      * @param priority the priority (more means it will be executed first)
      * @param f the function to use for evaluating
      */
-    public static void addOperation(String s, int priority, BiFunction<PyComplex, PyComplex, PyComplex> f) {
-        Operation op = new Operation(priority, f);
-        ops.put(s, op);
+    public static void addOperation(String s, int priority, BinaryOperator<Complex> f) {
+        addOperation(s, priority, f, null);
+    }
+
+    /**
+     * Adds an operation loaded from Python code to use when parsing a formula.
+     * If the operation was declared pure with a cache size, it remembers it's results (see {@link ResultCache}).
+     * @param s the symbol of the operation
+     * @param priority the priority (more means it will be executed first)
+     * @param f the function to use for evaluating
+     * @param code the Python code the operation was loaded from, or {@code null}
+     * @see Operation#code()
+     */
+    public static void addOperation(String s, int priority, BinaryOperator<Complex> f, @Nullable String code) {
+        if (f instanceof ResultCache.MemoizedOperation memoized) f = memoized.f();
+        Operation op = new Operation(priority, f, code);
+        int cache_size = pure_ops.contains(s) ? op_cache_sizes.getOrDefault(s, 0) : 0;
+        if (cache_size > 0 && !Intrinsics.isIntrinsic(op))
+            op = new Operation(priority, new ResultCache.MemoizedOperation(f, new ResultCache(cache_size)), code);
+        Operation previous = ops.put(s, op);
+        if (previous != null) rev_ops.remove(previous, s);
         rev_ops.put(op, s);
+        tables_version++;
+        symbols = null;
+        clearCache();
+    }
+
+    /**
+     * Adds an operation defined by a mod script to use when parsing a formula.
+     * The operands are converted to {@link org.python.core.PyComplex} only when the operation is evaluated.
+     * @param s the symbol of the operation
+     * @param priority the priority (more means it will be executed first)
+     * @param f a callable Python object that takes two complex numbers and returns a number
+     */
+    @ForMods
+    public static void addOperation(String s, int priority, PyObject f) {
+        addOperation(s, priority, (a, b) -> Complex.of(f.__call__(a.toPy(), b.toPy()).__complex__()));
     }
 
     /**
-     * Adds a function to use when parsing a formula
+     * Adds a function to use when parsing a formula.
+     * If the function was declared pure with a cache size, it remembers it's results (see {@link ResultCache}).
      * @param s the function name
      * @param f the function to use for evaluating
      */
-    public static void addFunction(String s, Function<PyComplex, PyComplex> f) {
-        funcs.put(s, f);
+    public static void addFunction(String s, UnaryOperator<Complex> f) {
+        if (f instanceof ResultCache.MemoizedFunction memoized) f = memoized.f();
+        int cache_size = pure_funcs.contains(s) ? func_cache_sizes.getOrDefault(s, 0) : 0;
+        if (cache_size > 0 && !Intrinsics.isIntrinsic(f)) f = new ResultCache.MemoizedFunction(f, new ResultCache(cache_size));
+        UnaryOperator<Complex> previous = funcs.put(s, f);
+        if (previous != null) rev_funcs.remove(previous, s);
         rev_funcs.put(f, s);
+        tables_version++;
+        symbols = null;
+        clearCache();
+    }
+
+    /**
+     * Adds a function defined by a mod script to use when parsing a formula.
+     * The argument is converted to {@link org.python.core.PyComplex} only when the function is evaluated.
+     * @param s the function name
+     * @param f a callable Python object that takes a complex number and returns a number
+     */
+    @ForMods
+    public static void addFunction(String s, PyObject f) {
+        addFunction(s, (x) -> Complex.of(f.__call__(x.toPy()).__complex__()));
     }
 
     @Override
     public boolean isVital() {
         return true;
     }
+
+    /**
+     * A formula stored in the cache of this class
+     * @param formula the parsed formula
+     * @param exact the exact result of evaluating the formula, or {@code null} if it is not rational
+     * @param evaluation the result of evaluating the formula, the amount of operations in it and it's string representation
+     * @param compiled the compiled formula, or {@code null} if it was not evaluated again yet
+     */
+    public record CachedFormula(Formula formula, @Nullable Rational exact, Formula.Evaluation evaluation, @Nullable CompiledFormula compiled) {
+    }
 }
@@ -11,10 +11,13 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.Nullable;
 import org.joml.Vector3f;
+import org.python.core.CompileMode;
+import org.python.core.PyCode;
 import org.python.core.PyComplex;
 import org.python.util.PythonInterpreter;
 
 import java.awt.Rectangle;
+import java.io.Writer;
 import java.util.List;
 import java.util.function.Consumer;
 
@@ -42,6 +45,11 @@ public class FuncButton implements CalcButton {
      */
     private static final float COORDS_RATIO = 100;
 
+    /**
+     * The names of the Python functions a button's script may define instead of being executed on every click
+     */
+    private static final List<String> ACTION_FUNCTIONS = List.of("on_click", "on_click_rev", "on_add", "on_add_rev");
+
     /**
      * The text displayed on the button, and the second part of this button's id
      */
@@ -67,6 +75,27 @@ public class FuncButton implements CalcButton {
      */
     protected Action onAdd;
 
+    /**
+     * The arguments this button was created with, until it's scripts are compiled by {@link FuncButton#prepare()},
+     * {@code null} if it was initialised without arguments or was already prepared
+     */
+    protected @Nullable List<String> args;
+
+    /**
+     * Whether this button's scripts were compiled, or failed to compile
+     */
+    private volatile boolean prepared;
+
+    /**
+     * The compiled scripts of this button, until they are bound to it's actions by {@link FuncButton#bind()}
+     */
+    private @Nullable Scripts scripts;
+
+    /**
+     * The exception this button's scripts failed to compile or bind with, or {@code null} if they did not fail
+     */
+    private @Nullable RuntimeException failure;
+
     /**
      * The logger for this object, may have a non-default name
      */
@@ -98,6 +127,7 @@ public class FuncButton implements CalcButton {
 
     @Override
     public void onAdd(GameState state, Properties properties, PyComplex old_count) {
+        bind();
         LOGGER.trace("Adding button '{}'", text);
         ActionContext ctx = new ActionContext(state, properties, properties.pos, properties.collection, state.getScreen(), LOGGER);
         Action action = new Action("onAdd") {
@@ -146,7 +176,11 @@ public class FuncButton implements CalcButton {
 
     @Override
     public void onClick(GameState state, Properties properties) {
-        if (onClick == null) throw new UnsupportedOperationException("This button was initialised without arguments, and is valid only for constructing buttons");
+        if (!bind()) {
+            if (failure == null) throw new UnsupportedOperationException("This button was initialised without arguments, and is valid only for constructing buttons");
+            LOGGER.error("Button '{}' can not be clicked, as it's scripts failed to load: {}", text, failure.toString());
+            return;
+        }
         if (properties.price != null) {
             if (state.getMoney().__cmp__(properties.price) == -1) return;
             ActionContext ctx = new ActionContext(state, properties, properties.pos, properties.collection, state.getScreen(), LOGGER);
@@ -216,38 +250,121 @@ public class FuncButton implements CalcButton {
      *             {@code 1} - a string of python code representing what to do when clicked<br>
      *             {@code 2} - the tooltip of the button to be displayed (optional)<br>
      *             {@code 3} - a string of python code representing the undo function (optional)
-     * @return a button object that can be rendered and pressed
+     * @return a button object that can be rendered and pressed, whose scripts are compiled when it is first used
      */
     @Override
     public CalcButton newButton(List<String> args, String mod_id) {
         FuncButton out = new FuncButton(args.getFirst());
-        try (PythonInterpreter py = new PythonInterpreter()) {
-            Consumer<ActionContext> f = (ctx) -> {
-                py.setOut(Utils.writerFromLogger(out.LOGGER));
-                py.set("state", ctx.state());
-                py.set("ctx", ctx);
-                py.exec(args.get(1));
-            };
-            Consumer<ActionContext> u = (ctx) -> {
-                py.setOut(Utils.writerFromLogger(out.LOGGER));
-                py.set("state", ctx.state());
-                py.set("ctx", ctx);
-                py.exec(args.get(3));
-            };
-            out.text = args.getFirst();
-            out.mod_id = mod_id;
-            if (args.size() > 2) out.tooltip = args.get(2);
-            if (args.size() <= 3) u = null;
-            out.onClick = Utils.actionFromPy(py, args.get(1), "on_click", out.LOGGER, f, u);
-            out.onAdd = Utils.actionFromPy(py, args.get(1), "on_add", out.LOGGER, (ignored) -> {}, (ignored) -> {});
-        } catch (RuntimeException e) {
-            LOGGER.error("Failed to create new function button", e);
-        }
+        out.text = args.getFirst();
+        out.mod_id = mod_id;
+        if (args.size() > 2) out.tooltip = args.get(2);
+        // the scripts are only compiled when the button is first used, see prepare()
+        out.args = args;
         return out;
     }
 
+    /**
+     * Compiles this button's scripts, if that was not done yet.
+     * Invoked before this button is first added or clicked, and by {@link ButtonPreparer} in the background.
+     * Only compiles the scripts, which does not run any mod code, so it is safe on any thread.
+     * The scripts are executed and bound to this button's actions by {@link FuncButton#bind()} on the game thread.
+     */
+    @Override
+    public void prepare() {
+        if (prepared) return;
+        synchronized (this) {
+            if (prepared || args == null) return;
+            try {
+                scripts = compileScripts(args);
+            } catch (RuntimeException e) {
+                failure = e;
+                LOGGER.error("Failed to compile the scripts of button '{}'", getString(), e);
+            } finally {
+                prepared = true;
+            }
+        }
+    }
+
+    /**
+     * Prepares this button, and binds it's compiled scripts to it's actions if that was not done yet.
+     * Invoked when this button is added or clicked, so mod code (the top level of a script that defines
+     * {@code on_click} and similar functions) is only executed on the game thread, like when the button is clicked.
+     * @return whether this button has a click action, {@code false} if it was initialised without arguments or failed to load
+     */
+    private synchronized boolean bind() {
+        prepare();
+        if (scripts != null) {
+            Scripts compiled = scripts;
+            scripts = null;
+            args = null;
+            try {
+                bindScripts(compiled);
+            } catch (RuntimeException e) {
+                failure = e;
+                LOGGER.error("Failed to create new function button '{}'", getString(), e);
+            }
+        }
+        return onClick != null;
+    }
+
+    /**
+     * Compiles the scripts of this button once, so clicking the button does not parse them again
+     * @param args the arguments this button was created with, see {@link FuncButton#newButton(List, String)}
+     * @return the compiled scripts
+     * @throws IllegalArgumentException if the scripts are not valid Python
+     */
+    private Scripts compileScripts(List<String> args) {
+        LOGGER.trace("Compiling scripts of button '{}'", getString());
+        boolean defines_functions = ACTION_FUNCTIONS.stream().anyMatch(name -> Utils.pyDefinesFunction(args.get(1), name));
+        boolean has_undo = args.size() > 3;
+        // simple expressions are compiled to Java, only other scripts need an interpreter
+        PyExpression click = defines_functions ? null : PyExpression.compile(args.get(1), "state", "ctx");
+        PyExpression undo = has_undo ? PyExpression.compile(args.get(3), "state", "ctx") : null;
+        PyCode script = click != null ? null : Utils.compilePy(args.get(1), getString(), CompileMode.exec, LOGGER);
+        PyCode undo_script = has_undo && undo == null ? Utils.compilePy(args.get(3), getString() + "_rev", CompileMode.exec, LOGGER) : null;
+        if ((click == null && script == null) || (has_undo && undo == null && undo_script == null))
+            throw new IllegalArgumentException("The scripts of button '%s' are not valid Python".formatted(getString()));
+        return new Scripts(args.get(1), defines_functions, has_undo, click, undo, script, undo_script);
+    }
+
+    /**
+     * Executes the compiled scripts of this button if they define functions,
+     * and creates it's {@link FuncButton#onClick} and {@link FuncButton#onAdd} actions
+     * @param scripts the compiled scripts
+     */
+    private void bindScripts(Scripts scripts) {
+        PythonInterpreter py = scripts.script() == null && scripts.undo_script() == null ? null : ModInterpreters.newInterpreter(mod_id);
+        Writer out = PyBridge.output(LOGGER);
+        String id = "%s:%s".formatted(mod_id, getString());
+        Consumer<ActionContext> f = scripts.click() != null ? PyBridge.action(scripts.click()) : scriptAction(py, id, scripts.script(), out);
+        Consumer<ActionContext> u = !scripts.has_undo() ? null : scripts.undo() != null ? PyBridge.action(scripts.undo()) : scriptAction(py, id + "_rev", scripts.undo_script(), out);
+        if (scripts.defines_functions()) {
+            ModInterpreters.withOutput(out, () -> ScriptWatchdog.load(id, () -> py.exec(scripts.script())));
+        }
+        onClick = Utils.actionFromPy(py, id, scripts.source(), "on_click", LOGGER, f, u);
+        onAdd = Utils.actionFromPy(py, id, scripts.source(), "on_add", LOGGER, (ignored) -> {}, (ignored) -> {});
+    }
+
+    /**
+     * Creates a function that executes a compiled script with the game state and the action's context as globals
+     * @param py the interpreter to execute the script in
+     * @param id the id of the script, used to limit the time it may run for, see {@link ScriptWatchdog}
+     * @param script the compiled script
+     * @param out the output of the interpreter while the script is executed
+     * @return the function
+     */
+    private static Consumer<ActionContext> scriptAction(PythonInterpreter py, String id, PyCode script, Writer out) {
+        return (ctx) -> {
+            py.set("state", ctx.state().toPy());
+            py.set("ctx", PyBridge.adapt(ctx));
+            ModInterpreters.withOutput(out, () -> ScriptWatchdog.run(id, () -> py.exec(script)));
+        };
+    }
+
     @Override
     public void render(GameState state, Properties properties) {
+        // a rendered button is likely to be clicked soon, so it's scripts are compiled before other buttons
+        if (!prepared && args != null) ButtonPreparer.prioritize(this);
         switch (state.getRenderType()) {
             case CONSOLE -> {
                 //TODO write render for console
@@ -359,4 +476,18 @@ public class FuncButton implements CalcButton {
     public String toString() {
         return getString();
     }
+
+    /**
+     * The compiled scripts of a button
+     * @param source the click script, which may define {@code on_click} and similar functions
+     * @param defines_functions whether the click script defines any of {@link FuncButton#ACTION_FUNCTIONS}
+     * @param has_undo whether the button has an undo script
+     * @param click the click script compiled to Java, or {@code null} if it is compiled by Jython
+     * @param undo the undo script compiled to Java, or {@code null} if it is compiled by Jython or does not exist
+     * @param script the click script compiled by Jython, or {@code null} if it is compiled to Java
+     * @param undo_script the undo script compiled by Jython, or {@code null} if it is compiled to Java or does not exist
+     */
+    private record Scripts(String source, boolean defines_functions, boolean has_undo, @Nullable PyExpression click,
+                           @Nullable PyExpression undo, @Nullable PyCode script, @Nullable PyCode undo_script) {
+    }
 }
@@ -0,0 +1,80 @@
+package com.calcgame.main;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link BatchKernels} that compute several elements at once using the {@code jdk.incubator.vector} API.
+ * The elements that do not fill a whole vector are computed by the scalar kernels.
+ * Only loaded by {@link BatchKernels#load()} if the module is present, so referencing it does not require the module.
+ */
+public class VectorBatchKernels extends BatchKernels {
+    /**
+     * The preferred vector shape of the current CPU
+     */
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public void add(double[] ar, double[] ai, double[] br, double[] bi, double[] or, double[] oi, int from, int to) {
+        int i = from;
+        for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, ar, i).add(DoubleVector.fromArray(SPECIES, br, i)).intoArray(or, i);
+            DoubleVector.fromArray(SPECIES, ai, i).add(DoubleVector.fromArray(SPECIES, bi, i)).intoArray(oi, i);
+        }
+        super.add(ar, ai, br, bi, or, oi, i, to);
+    }
+
+    @Override
+    public void sub(double[] ar, double[] ai, double[] br, double[] bi, double[] or, double[] oi, int from, int to) {
+        int i = from;
+        for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, ar, i).sub(DoubleVector.fromArray(SPECIES, br, i)).intoArray(or, i);
+            DoubleVector.fromArray(SPECIES, ai, i).sub(DoubleVector.fromArray(SPECIES, bi, i)).intoArray(oi, i);
+        }
+        super.sub(ar, ai, br, bi, or, oi, i, to);
+    }
+
+    @Override
+    public void mul(double[] ar, double[] ai, double[] br, double[] bi, double[] or, double[] oi, int from, int to) {
+        int i = from;
+        for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+            DoubleVector a_real = DoubleVector.fromArray(SPECIES, ar, i), a_imag = DoubleVector.fromArray(SPECIES, ai, i);
+            DoubleVector b_real = DoubleVector.fromArray(SPECIES, br, i), b_imag = DoubleVector.fromArray(SPECIES, bi, i);
+            a_real.mul(b_real).sub(a_imag.mul(b_imag)).intoArray(or, i);
+            a_real.mul(b_imag).add(a_imag.mul(b_real)).intoArray(oi, i);
+        }
+        super.mul(ar, ai, br, bi, or, oi, i, to);
+    }
+
+    @Override
+    public void div(double[] ar, double[] ai, double[] br, double[] bi, double[] or, double[] oi, int from, int to) {
+        int i = from;
+        for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+            DoubleVector a_real = DoubleVector.fromArray(SPECIES, ar, i), a_imag = DoubleVector.fromArray(SPECIES, ai, i);
+            DoubleVector b_real = DoubleVector.fromArray(SPECIES, br, i), b_imag = DoubleVector.fromArray(SPECIES, bi, i);
+            VectorMask<Double> real_larger = b_real.lanewise(VectorOperators.ABS).compare(VectorOperators.GE, b_imag.lanewise(VectorOperators.ABS));
+            VectorMask<Double> zero = b_real.compare(VectorOperators.EQ, 0).and(b_imag.compare(VectorOperators.EQ, 0));
+            // ratio and denominator of both branches of Smith's algorithm, picked per lane
+            DoubleVector ratio = b_real.div(b_imag).blend(b_imag.div(b_real), real_larger);
+            DoubleVector denom = b_real.mul(ratio).add(b_imag).blend(b_real.add(b_imag.mul(ratio)), real_larger);
+            DoubleVector real = a_real.mul(ratio).add(a_imag).blend(a_real.add(a_imag.mul(ratio)), real_larger);
+            DoubleVector imag = a_imag.mul(ratio).sub(a_real).blend(a_imag.sub(a_real.mul(ratio)), real_larger);
+            real.div(denom).blend(Double.NaN, zero).intoArray(or, i);
+            imag.div(denom).blend(Double.NaN, zero).intoArray(oi, i);
+        }
+        super.div(ar, ai, br, bi, or, oi, i, to);
+    }
+
+    @Override
+    public void square(double[] ar, double[] ai, double[] or, double[] oi, int from, int to) {
+        int i = from;
+        for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+            DoubleVector a_real = DoubleVector.fromArray(SPECIES, ar, i), a_imag = DoubleVector.fromArray(SPECIES, ai, i);
+            a_real.mul(a_real).sub(a_imag.mul(a_imag)).intoArray(or, i);
+            a_real.mul(a_imag).add(a_imag.mul(a_real)).intoArray(oi, i);
+        }
+        super.square(ar, ai, or, oi, i, to);
+    }
+}